@@ -0,0 +1,166 @@
+package org.nethergames.proxytransport.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.util.Random;
+
+/**
+ * Synthetic uncompressed batches shaped like clientbound gameplay traffic: varint length prefixed packets
+ * with a varint header, entity updates with small varints and floats, and chunks with palette-like runs.
+ */
+public final class BatchFixtures {
+    public static final int MOVE_ENTITY_ABSOLUTE = 18;
+    public static final int SET_ENTITY_DATA = 39;
+    public static final int SET_ENTITY_MOTION = 40;
+    public static final int LEVEL_CHUNK = 58;
+    public static final int MOVE_ENTITY_DELTA = 111;
+
+    public enum Size {
+        /**
+         * A few movement updates, the most common batch during gameplay.
+         */
+        SMALL(new int[]{MOVE_ENTITY_DELTA, MOVE_ENTITY_DELTA, SET_ENTITY_MOTION, MOVE_ENTITY_DELTA}),
+        /**
+         * A busy tick with many entity updates.
+         */
+        MEDIUM(repeat(new int[]{MOVE_ENTITY_DELTA, MOVE_ENTITY_DELTA, SET_ENTITY_DATA, MOVE_ENTITY_ABSOLUTE, SET_ENTITY_MOTION}, 10)),
+        /**
+         * Chunks sent while joining or teleporting.
+         */
+        LARGE(repeat(new int[]{LEVEL_CHUNK, MOVE_ENTITY_DELTA, SET_ENTITY_DATA}, 6));
+
+        private final int[] packetIds;
+
+        Size(int[] packetIds) {
+            this.packetIds = packetIds;
+        }
+
+        public int[] getPacketIds() {
+            return this.packetIds;
+        }
+    }
+
+    private BatchFixtures() {
+    }
+
+    /**
+     * Create the uncompressed payload of a batch. The same size always yields the same bytes.
+     */
+    public static ByteBuf createBatch(ByteBufAllocator alloc, Size size) {
+        Random random = new Random(size.ordinal());
+        ByteBuf batch = alloc.directBuffer();
+        ByteBuf packet = alloc.heapBuffer();
+        try {
+            for (int packetId : size.getPacketIds()) {
+                packet.clear();
+                writeVarInt(packet, packetId); // sender and target sub client are 0
+                writePayload(packet, packetId, random);
+
+                writeVarInt(batch, packet.readableBytes());
+                batch.writeBytes(packet);
+            }
+        } finally {
+            packet.release();
+        }
+        return batch;
+    }
+
+    private static void writePayload(ByteBuf buf, int packetId, Random random) {
+        switch (packetId) {
+            case MOVE_ENTITY_DELTA -> {
+                writeVarLong(buf, 1 + random.nextInt(512)); // runtime entity id
+                buf.writeShortLE(0x3f); // flags
+                for (int i = 0; i < 3; i++) {
+                    buf.writeFloatLE(random.nextFloat() * 256);
+                }
+                for (int i = 0; i < 3; i++) {
+                    buf.writeByte(random.nextInt(256)); // rotation
+                }
+            }
+            case MOVE_ENTITY_ABSOLUTE -> {
+                writeVarLong(buf, 1 + random.nextInt(512));
+                buf.writeByte(1);
+                for (int i = 0; i < 3; i++) {
+                    buf.writeFloatLE(random.nextFloat() * 256);
+                }
+                buf.writeBytes(new byte[]{(byte) random.nextInt(256), (byte) random.nextInt(256), (byte) random.nextInt(256)});
+            }
+            case SET_ENTITY_MOTION -> {
+                writeVarLong(buf, 1 + random.nextInt(512));
+                for (int i = 0; i < 3; i++) {
+                    buf.writeFloatLE(random.nextFloat() - 0.5f);
+                }
+                writeVarLong(buf, random.nextInt(100_000)); // tick
+            }
+            case SET_ENTITY_DATA -> {
+                writeVarLong(buf, 1 + random.nextInt(512));
+                int entries = 4 + random.nextInt(8);
+                writeVarInt(buf, entries);
+                for (int i = 0; i < entries; i++) {
+                    writeVarInt(buf, i * 3); // key
+                    writeVarInt(buf, 7); // long type
+                    writeVarLong(buf, random.nextInt(4) == 0 ? random.nextLong() >>> 20 : i);
+                }
+                writeVarInt(buf, 0); // properties
+                writeVarInt(buf, 0);
+                writeVarLong(buf, random.nextInt(100_000));
+            }
+            case LEVEL_CHUNK -> {
+                writeVarInt(buf, random.nextInt(64) - 32); // chunk x
+                writeVarInt(buf, random.nextInt(64) - 32); // chunk z
+                writeVarInt(buf, 0); // dimension
+                writeVarInt(buf, 8); // sub chunks
+                buf.writeBoolean(false);
+
+                for (int subChunk = 0; subChunk < 8; subChunk++) {
+                    buf.writeByte(9); // version
+                    buf.writeByte(1); // layers
+                    buf.writeByte(subChunk);
+                    buf.writeByte(4 << 1 | 1); // 4 bits per block, runtime palette
+
+                    int paletteSize = 2 + random.nextInt(10);
+                    int word = 0;
+                    for (int i = 0; i < 512; i++) { // 4096 blocks in 32 bit words
+                        if (i % 16 == 0) { // blocks repeat in layers, the same word stays for a while
+                            word = 0;
+                            for (int block = 0; block < 8; block++) {
+                                word |= random.nextInt(paletteSize) << (block * 4);
+                            }
+                        }
+                        buf.writeIntLE(word);
+                    }
+
+                    writeVarInt(buf, paletteSize << 1);
+                    for (int i = 0; i < paletteSize; i++) {
+                        writeVarInt(buf, random.nextInt(15_000) << 1);
+                    }
+                }
+
+                buf.writeZero(256); // biomes
+                buf.writeByte(0); // border blocks
+            }
+            default -> buf.writeZero(16);
+        }
+    }
+
+    private static void writeVarInt(ByteBuf buf, int value) {
+        writeVarLong(buf, value & 0xffffffffL);
+    }
+
+    private static void writeVarLong(ByteBuf buf, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buf.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte((int) value);
+    }
+
+    private static int[] repeat(int[] ids, int times) {
+        int[] result = new int[ids.length * times];
+        for (int i = 0; i < times; i++) {
+            System.arraycopy(ids, 0, result, i * ids.length, ids.length);
+        }
+        return result;
+    }
+}
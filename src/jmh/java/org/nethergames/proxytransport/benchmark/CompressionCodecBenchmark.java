@@ -0,0 +1,88 @@
+package org.nethergames.proxytransport.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.cloudburstmc.protocol.bedrock.data.PacketCompressionAlgorithm;
+import org.cloudburstmc.protocol.bedrock.netty.BedrockBatchWrapper;
+import org.cloudburstmc.protocol.bedrock.netty.codec.compression.SimpleCompressionStrategy;
+import org.cloudburstmc.protocol.bedrock.netty.codec.compression.ZlibCompression;
+import org.cloudburstmc.protocol.common.util.Zlib;
+import org.nethergames.proxytransport.compression.FrameIdCodec;
+import org.nethergames.proxytransport.compression.ProxyTransportCompressionCodec;
+import org.nethergames.proxytransport.compression.TransportFrameCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outbound path of a downstream channel, from the compression codec down to the framing.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionCodecBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    private BatchFixtures.Size size;
+
+    @Param({"true", "false"})
+    private boolean fusedFraming;
+
+    private EmbeddedChannel channel;
+    private ByteBuf uncompressed;
+    private ByteBuf zlibCompressed;
+
+    @Setup
+    public void setup() throws Exception {
+        this.channel = new EmbeddedChannel();
+        if (this.fusedFraming) {
+            this.channel.pipeline().addLast(TransportFrameCodec.NAME, new TransportFrameCodec());
+        } else {
+            this.channel.pipeline().addLast(FrameIdCodec.NAME, new FrameIdCodec());
+        }
+
+        ZlibCompression zlib = new ZlibCompression(Zlib.RAW);
+        this.channel.pipeline().addLast(new ProxyTransportCompressionCodec(new SimpleCompressionStrategy(zlib), false));
+
+        this.uncompressed = BatchFixtures.createBatch(this.channel.alloc(), this.size);
+        this.zlibCompressed = zlib.encode(this.channel.pipeline().firstContext(), this.uncompressed.duplicate());
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.uncompressed.release();
+        this.zlibCompressed.release();
+        this.channel.finishAndReleaseAll();
+    }
+
+    /**
+     * A batch the proxy did not modify, forwarded with the client's compression.
+     */
+    @Benchmark
+    public void passThrough() {
+        BedrockBatchWrapper batch = BedrockBatchWrapper.newInstance(this.zlibCompressed.retainedDuplicate(), null);
+        batch.setAlgorithm(PacketCompressionAlgorithm.ZLIB);
+        this.writeAndDrain(batch);
+    }
+
+    /**
+     * A batch rewritten by the proxy, compressed again with Zstd.
+     */
+    @Benchmark
+    public void recompress() {
+        this.writeAndDrain(BedrockBatchWrapper.newInstance(null, this.uncompressed.retainedDuplicate()));
+    }
+
+    private void writeAndDrain(BedrockBatchWrapper batch) {
+        this.channel.writeOutbound(batch);
+
+        Object msg;
+        while ((msg = this.channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
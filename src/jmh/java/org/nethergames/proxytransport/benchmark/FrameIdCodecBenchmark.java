@@ -0,0 +1,49 @@
+package org.nethergames.proxytransport.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.cloudburstmc.protocol.bedrock.netty.BedrockBatchWrapper;
+import org.nethergames.proxytransport.compression.FrameIdCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameIdCodecBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    private BatchFixtures.Size size;
+
+    private EmbeddedChannel channel;
+    private ByteBuf frame;
+
+    @Setup
+    public void setup() {
+        this.channel = new EmbeddedChannel(new FrameIdCodec());
+        this.frame = BatchFixtures.createBatch(this.channel.alloc(), this.size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.frame.release();
+        this.channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void encode() {
+        this.channel.writeOutbound(BedrockBatchWrapper.newInstance(this.frame.retainedDuplicate(), null));
+        ReferenceCountUtil.release(this.channel.readOutbound());
+    }
+
+    @Benchmark
+    public void decode() {
+        this.channel.writeInbound(this.frame.retainedDuplicate());
+        ReferenceCountUtil.release(this.channel.readInbound());
+    }
+}
@@ -0,0 +1,69 @@
+package org.nethergames.proxytransport.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.nethergames.proxytransport.compression.ZstdCompression;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ZstdCompressionBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    private BatchFixtures.Size size;
+
+    @Param({"-5", "-1", "3"})
+    private int level;
+
+    private EmbeddedChannel channel;
+    private ChannelHandlerContext ctx;
+    private ZstdCompression compression;
+    private ByteBuf batch;
+    private ByteBuf compressed;
+
+    @Setup
+    public void setup() throws Exception {
+        this.channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        this.ctx = this.channel.pipeline().firstContext();
+        this.compression = new ZstdCompression(null);
+        this.compression.setLevel(this.level);
+        this.batch = BatchFixtures.createBatch(this.channel.alloc(), this.size);
+
+        this.compressed = this.compression.encode(this.ctx, this.batch.duplicate());
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.batch.release();
+        this.compressed.release();
+        this.channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public int encode() throws Exception {
+        ByteBuf output = this.compression.encode(this.ctx, this.batch.duplicate());
+        try {
+            return output.readableBytes();
+        } finally {
+            output.release();
+        }
+    }
+
+    @Benchmark
+    public int decode() throws Exception {
+        ByteBuf output = this.compression.decode(this.ctx, this.compressed.duplicate());
+        try {
+            return output.readableBytes();
+        } finally {
+            output.release();
+        }
+    }
+}
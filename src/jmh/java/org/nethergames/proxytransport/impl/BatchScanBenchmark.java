@@ -0,0 +1,73 @@
+package org.nethergames.proxytransport.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.cloudburstmc.protocol.bedrock.netty.BedrockBatchWrapper;
+import org.cloudburstmc.protocol.bedrock.netty.BedrockPacketWrapper;
+import org.cloudburstmc.protocol.bedrock.packet.NetworkStackLatencyPacket;
+import org.nethergames.proxytransport.benchmark.BatchFixtures;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The scan a clientbound batch goes through while looking for the response to our latency ping. Batches with a ping
+ * response also measure decoding it and removing it from the batch.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchScanBenchmark {
+
+    private static final int NETWORK_STACK_LATENCY = 115;
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    private BatchFixtures.Size size;
+
+    /**
+     * Where the response to our ping sits in the batch, it is inserted before and removed by every scan.
+     */
+    @Param({"NONE", "MIDDLE", "END"})
+    private PingPosition ping;
+
+    private BedrockBatchWrapper batch;
+    private NetworkStackLatencyPacket pingResponse;
+
+    @Setup
+    public void setup() {
+        this.pingResponse = new NetworkStackLatencyPacket();
+        this.pingResponse.setTimestamp(0L);
+
+        this.batch = BedrockBatchWrapper.newInstance();
+        for (int packetId : this.size.getPacketIds()) {
+            ByteBuf buffer = ByteBufAllocator.DEFAULT.directBuffer(1).writeByte(packetId);
+            this.batch.getPackets().add(BedrockPacketWrapper.create(packetId, 0, 0, null, buffer));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.batch.release();
+    }
+
+    @Benchmark
+    public boolean scan() {
+        if (this.ping != PingPosition.NONE) {
+            ByteBuf buffer = ByteBufAllocator.DEFAULT.directBuffer(1).writeByte(NETWORK_STACK_LATENCY);
+            BedrockPacketWrapper response = BedrockPacketWrapper.create(NETWORK_STACK_LATENCY, 0, 0, null, buffer);
+            int index = this.ping == PingPosition.MIDDLE ? this.batch.getPackets().size() / 2 : this.batch.getPackets().size();
+            this.batch.getPackets().add(index, response);
+        }
+
+        return TransportClientConnection.removePingResponse(this.batch, wrapper -> wrapper.setPacket(this.pingResponse));
+    }
+
+    public enum PingPosition {
+        NONE,
+        MIDDLE,
+        END
+    }
+}
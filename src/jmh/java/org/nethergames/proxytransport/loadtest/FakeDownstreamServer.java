@@ -0,0 +1,87 @@
+package org.nethergames.proxytransport.loadtest;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.*;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.incubator.codec.quic.InsecureQuicTokenHandler;
+import io.netty.incubator.codec.quic.QuicServerCodecBuilder;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicSslContextBuilder;
+import org.nethergames.proxytransport.config.QuicSettings;
+import org.nethergames.proxytransport.utils.TransportBackend;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stand-in downstream server on localhost. It echoes every byte it receives, so each frame written by a session
+ * comes back as one clientbound frame in the same ProxyTransport framing.
+ */
+public class FakeDownstreamServer implements AutoCloseable {
+    private final EventLoopGroup group;
+    private Channel channel;
+
+    public FakeDownstreamServer(EventLoopGroup group) {
+        this.group = group;
+    }
+
+    public InetSocketAddress startTcp() throws InterruptedException {
+        this.channel = new ServerBootstrap()
+                .group(this.group)
+                .channel(TransportBackend.of(this.group).getServerSocketChannel())
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new EchoHandler())
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+        return (InetSocketAddress) this.channel.localAddress();
+    }
+
+    public InetSocketAddress startQuic() throws Exception {
+        SelfSignedCertificate certificate = new SelfSignedCertificate();
+        QuicSslContext sslContext = QuicSslContextBuilder.forServer(certificate.key(), null, certificate.cert())
+                .applicationProtocols("ng")
+                .build();
+
+        QuicSettings settings = QuicSettings.DEFAULT;
+        ChannelHandler codec = new QuicServerCodecBuilder()
+                .sslContext(sslContext)
+                .tokenHandler(InsecureQuicTokenHandler.INSTANCE)
+                .maxIdleTimeout(settings.getMaxIdleTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .initialMaxData(settings.getInitialMaxData())
+                .initialMaxStreamDataBidirectionalLocal(settings.getInitialMaxStreamDataBidirectionalLocal())
+                .initialMaxStreamDataBidirectionalRemote(settings.getInitialMaxStreamDataBidirectionalRemote())
+                .initialMaxStreamsBidirectional(Math.max(settings.getInitialMaxStreamsBidirectional(), 100_000))
+                .maxRecvUdpPayloadSize(settings.getMaxUdpPayloadSize())
+                .maxSendUdpPayloadSize(settings.getMaxUdpPayloadSize())
+                .handler(new ChannelInboundHandlerAdapter())
+                .streamHandler(new EchoHandler())
+                .build();
+
+        this.channel = new Bootstrap()
+                .group(this.group)
+                .channel(TransportBackend.of(this.group).getDatagramChannel())
+                .handler(codec)
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+        return (InetSocketAddress) this.channel.localAddress();
+    }
+
+    @Override
+    public void close() {
+        if (this.channel != null) {
+            this.channel.close().syncUninterruptibly();
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static class EchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.write(msg, ctx.voidPromise());
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.flush();
+        }
+    }
+}
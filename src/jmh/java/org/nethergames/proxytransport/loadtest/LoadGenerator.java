@@ -0,0 +1,334 @@
+package org.nethergames.proxytransport.loadtest;
+
+import dev.waterdog.waterdogpe.utils.config.YamlConfig;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.incubator.codec.quic.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import org.cloudburstmc.protocol.bedrock.data.PacketCompressionAlgorithm;
+import org.cloudburstmc.protocol.bedrock.netty.BedrockBatchWrapper;
+import org.cloudburstmc.protocol.bedrock.netty.codec.compression.CompressionStrategy;
+import org.cloudburstmc.protocol.bedrock.netty.codec.compression.SimpleCompressionStrategy;
+import org.cloudburstmc.protocol.bedrock.netty.codec.compression.ZlibCompression;
+import org.cloudburstmc.protocol.common.util.Zlib;
+import org.nethergames.proxytransport.benchmark.BatchFixtures;
+import org.nethergames.proxytransport.config.QuicSettings;
+import org.nethergames.proxytransport.config.TransportConfig;
+import org.nethergames.proxytransport.impl.TransportChannelInitializer;
+import org.nethergames.proxytransport.metrics.Histogram;
+import org.nethergames.proxytransport.metrics.TransportMetrics;
+import org.nethergames.proxytransport.utils.TransportBackend;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives simulated player sessions through the downstream transport pipeline against a {@link FakeDownstreamServer}
+ * on localhost and reports frames/s, bytes/s, round trip latency percentiles and CPU usage per event loop.
+ * <p>
+ * Options are passed as {@code --name=value}:
+ * <ul>
+ *     <li>{@code transport} tcp or quic (tcp)</li>
+ *     <li>{@code sessions} number of simulated sessions (100)</li>
+ *     <li>{@code threads} client event loops (available processors)</li>
+ *     <li>{@code server-threads} event loops of the fake server (available processors)</li>
+ *     <li>{@code duration} seconds to run (30)</li>
+ *     <li>{@code interval-millis} time between batches of a session, 50 matches the server tick rate (50)</li>
+ *     <li>{@code batch} SMALL, MEDIUM or LARGE fixture (MEDIUM)</li>
+ *     <li>{@code mode} recompress sends batches rewritten by the proxy, pass-through sends batches in the client's compression (recompress)</li>
+ *     <li>{@code config} a ProxyTransport config.yml to run with, e.g. to compare framing, coalescing or Zstd levels</li>
+ * </ul>
+ */
+public class LoadGenerator {
+    private static final String SERVER_NAME = "loadtest";
+
+    private final Map<String, String> options;
+    private final Histogram totalLatency = new Histogram();
+    private volatile Histogram intervalLatency = new Histogram();
+
+    private ByteBuf uncompressed;
+    private ByteBuf passThrough;
+
+    public LoadGenerator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+
+            int separator = arg.indexOf('=');
+            options.put(separator < 0 ? arg.substring(2) : arg.substring(2, separator), separator < 0 ? "true" : arg.substring(separator + 1));
+        }
+
+        new LoadGenerator(options).run();
+    }
+
+    private String option(String name, String defaultValue) {
+        return this.options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(this.option(name, String.valueOf(defaultValue)));
+    }
+
+    public void run() throws Exception {
+        String configFile = this.option("config", null);
+        if (configFile != null) {
+            TransportConfig.load(new YamlConfig(new File(configFile)));
+        }
+
+        boolean quic = this.option("transport", "tcp").equalsIgnoreCase("quic");
+        int sessions = this.intOption("sessions", 100);
+        int threads = this.intOption("threads", Runtime.getRuntime().availableProcessors());
+        int serverThreads = this.intOption("server-threads", Runtime.getRuntime().availableProcessors());
+        int duration = this.intOption("duration", 30);
+        int intervalMillis = this.intOption("interval-millis", 50);
+        boolean recompress = !this.option("mode", "recompress").equalsIgnoreCase("pass-through");
+        BatchFixtures.Size size = BatchFixtures.Size.valueOf(this.option("batch", "MEDIUM").toUpperCase(Locale.ROOT));
+
+        TransportBackend backend = TransportBackend.get();
+        EventLoopGroup serverGroup = backend.newEventLoopGroup(serverThreads, new DefaultThreadFactory("LoadTest-Server"));
+        EventLoopGroup clientGroup = backend.newEventLoopGroup(threads, new DefaultThreadFactory("LoadTest-Client"));
+
+        ZlibCompression zlib = new ZlibCompression(Zlib.RAW);
+        this.createFixtures(zlib, size);
+
+        try (FakeDownstreamServer server = new FakeDownstreamServer(serverGroup)) {
+            InetSocketAddress address = quic ? server.startQuic() : server.startTcp();
+            System.out.printf("Fake downstream server listening on %s (%s, %s backend)%n", address, quic ? "quic" : "tcp", backend.name().toLowerCase(Locale.ROOT));
+
+            List<QuicChannel> quicChannels = quic ? this.connectQuic(clientGroup, address) : List.of();
+            List<Channel> channels = new ArrayList<>();
+            for (int i = 0; i < sessions; i++) {
+                ChannelInitializer<Channel> initializer = this.newSessionInitializer(new SimpleCompressionStrategy(zlib), recompress, intervalMillis);
+                if (quic) {
+                    channels.add(quicChannels.get(i % quicChannels.size()).createStream(QuicStreamType.BIDIRECTIONAL, initializer).sync().getNow());
+                } else {
+                    channels.add(new Bootstrap()
+                            .group(clientGroup)
+                            .channel(backend.getSocketChannel())
+                            .option(ChannelOption.TCP_NODELAY, true)
+                            .handler(initializer)
+                            .connect(address).sync().channel());
+                }
+            }
+
+            System.out.printf("Started %d sessions sending %s batches (%d bytes uncompressed) every %d ms, mode %s%n",
+                    sessions, size, this.uncompressed.readableBytes(), intervalMillis, recompress ? "recompress" : "pass-through");
+            this.report(clientGroup, duration);
+
+            for (Channel channel : channels) {
+                channel.close();
+            }
+            for (QuicChannel channel : quicChannels) {
+                channel.close();
+            }
+        } finally {
+            clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+            serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+            this.uncompressed.release();
+            this.passThrough.release();
+        }
+    }
+
+    private void createFixtures(ZlibCompression zlib, BatchFixtures.Size size) throws Exception {
+        this.uncompressed = BatchFixtures.createBatch(ByteBufAllocator.DEFAULT, size);
+
+        // Prefixed like batches of clients >= 1.20.60, the header byte 0 marks zlib
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        ByteBuf compressed = zlib.encode(channel.pipeline().firstContext(), this.uncompressed.duplicate());
+        this.passThrough = ByteBufAllocator.DEFAULT.directBuffer(1 + compressed.readableBytes());
+        this.passThrough.writeByte(0).writeBytes(compressed);
+        compressed.release();
+        channel.finishAndReleaseAll();
+    }
+
+    private List<QuicChannel> connectQuic(EventLoopGroup group, InetSocketAddress address) throws Exception {
+        QuicSettings settings = QuicSettings.DEFAULT;
+        QuicSslContext sslContext = QuicSslContextBuilder.forClient()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .applicationProtocols("ng")
+                .build();
+
+        List<QuicChannel> channels = new ArrayList<>();
+        for (EventExecutor executor : group) { // one connection per event loop, like the downstream connection pool
+            ChannelHandler codec = new QuicClientCodecBuilder()
+                    .sslContext(sslContext)
+                    .maxIdleTimeout(settings.getMaxIdleTimeoutMillis(), TimeUnit.MILLISECONDS)
+                    .initialMaxData(settings.getInitialMaxData())
+                    .initialMaxStreamDataBidirectionalLocal(settings.getInitialMaxStreamDataBidirectionalLocal())
+                    .initialMaxStreamDataBidirectionalRemote(settings.getInitialMaxStreamDataBidirectionalRemote())
+                    .initialMaxStreamsBidirectional(settings.getInitialMaxStreamsBidirectional())
+                    .maxRecvUdpPayloadSize(settings.getMaxUdpPayloadSize())
+                    .maxSendUdpPayloadSize(settings.getMaxUdpPayloadSize())
+                    .congestionControlAlgorithm(settings.getCongestionControl())
+                    .build();
+
+            Channel datagram = new Bootstrap()
+                    .group((EventLoop) executor)
+                    .channel(TransportBackend.of(group).getDatagramChannel())
+                    .handler(codec)
+                    .bind(0).sync().channel();
+
+            channels.add(QuicChannel.newBootstrap(datagram)
+                    .streamHandler(new ChannelInboundHandlerAdapter())
+                    .remoteAddress(address)
+                    .connect().sync().getNow());
+        }
+
+        return channels;
+    }
+
+    private ChannelInitializer<Channel> newSessionInitializer(CompressionStrategy strategy, boolean recompress, int intervalMillis) {
+        return new ChannelInitializer<>() {
+            @Override
+            protected void initChannel(Channel channel) {
+                channel.attr(TransportMetrics.ATTRIBUTE).set(TransportMetrics.newConnection(SERVER_NAME));
+                TransportChannelInitializer.initTransportPipeline(channel, strategy, true);
+                channel.pipeline().addLast(new Session(recompress, intervalMillis));
+            }
+        };
+    }
+
+    private void report(EventLoopGroup group, int duration) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        List<Long> threadIds = new ArrayList<>();
+        for (EventExecutor executor : group) {
+            threadIds.add(executor.submit(() -> Thread.currentThread().getId()).get());
+        }
+
+        TransportMetrics metrics = TransportMetrics.forServer(SERVER_NAME);
+        long[] lastCpu = new long[threadIds.size()];
+        for (int i = 0; i < lastCpu.length; i++) {
+            lastCpu[i] = threads.getThreadCpuTime(threadIds.get(i));
+        }
+
+        long lastFramesOut = 0, lastFramesIn = 0, lastBytesOut = 0, lastBytesIn = 0;
+        long lastTime = System.nanoTime();
+        for (int second = 1; second <= duration; second++) {
+            Thread.sleep(1000);
+
+            long now = System.nanoTime();
+            double elapsed = (now - lastTime) / 1e9;
+            lastTime = now;
+
+            Histogram latency = this.intervalLatency;
+            this.intervalLatency = new Histogram();
+
+            long framesOut = metrics.getFramesOut().sum(), framesIn = metrics.getFramesIn().sum();
+            long bytesOut = metrics.getBytesOut().sum(), bytesIn = metrics.getBytesIn().sum();
+
+            StringBuilder cpu = new StringBuilder();
+            for (int i = 0; i < lastCpu.length; i++) {
+                long time = threads.getThreadCpuTime(threadIds.get(i));
+                cpu.append(i == 0 ? "" : " ").append(Math.round((time - lastCpu[i]) / (elapsed * 1e7))).append('%');
+                lastCpu[i] = time;
+            }
+
+            System.out.printf("[%3ds] out %8.0f frames/s %8.2f MB/s | in %8.0f frames/s %8.2f MB/s | rtt p50 %6d p99 %6d p99.9 %6d us | cpu %s%n",
+                    second,
+                    (framesOut - lastFramesOut) / elapsed, (bytesOut - lastBytesOut) / elapsed / 1e6,
+                    (framesIn - lastFramesIn) / elapsed, (bytesIn - lastBytesIn) / elapsed / 1e6,
+                    latency.getPercentile(0.5), latency.getPercentile(0.99), latency.getPercentile(0.999), cpu);
+
+            lastFramesOut = framesOut;
+            lastFramesIn = framesIn;
+            lastBytesOut = bytesOut;
+            lastBytesIn = bytesIn;
+        }
+
+        System.out.printf("Total: %d frames out, %d frames in, rtt p50 %d p99 %d p99.9 %d us (upper bucket bounds)%n",
+                metrics.getFramesOut().sum(), metrics.getFramesIn().sum(),
+                this.totalLatency.getPercentile(0.5), this.totalLatency.getPercentile(0.99), this.totalLatency.getPercentile(0.999));
+    }
+
+    /**
+     * A simulated player session. The echo server returns frames in order, so the send times are matched in FIFO order.
+     */
+    private class Session extends ChannelInboundHandlerAdapter {
+        private final boolean recompress;
+        private final int intervalMillis;
+        private final ArrayDeque<Long> sendTimes = new ArrayDeque<>();
+        private ScheduledFuture<?> sendTask;
+
+        private Session(boolean recompress, int intervalMillis) {
+            this.recompress = recompress;
+            this.intervalMillis = intervalMillis;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            if (ctx.channel().isActive()) { // QUIC streams are active right away, TCP channels once connected
+                this.start(ctx);
+            }
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            this.start(ctx);
+            ctx.fireChannelActive();
+        }
+
+        private void start(ChannelHandlerContext ctx) {
+            if (this.sendTask == null) {
+                long delay = ThreadLocalRandom.current().nextInt(this.intervalMillis); // spread sessions over the tick
+                this.sendTask = ctx.executor().scheduleAtFixedRate(() -> this.send(ctx), delay, this.intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void send(ChannelHandlerContext ctx) {
+            BedrockBatchWrapper batch;
+            if (this.recompress) {
+                batch = BedrockBatchWrapper.newInstance(null, uncompressed.retainedDuplicate());
+            } else {
+                batch = BedrockBatchWrapper.newInstance(passThrough.retainedDuplicate(), null);
+                batch.setAlgorithm(PacketCompressionAlgorithm.ZLIB);
+            }
+
+            // Only frames that were written get a send time, a failed write would shift every later match by one
+            long sent = System.nanoTime();
+            ctx.writeAndFlush(batch).addListener(future -> {
+                if (future.isSuccess()) {
+                    this.sendTimes.add(sent);
+                }
+            });
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                Long sent = this.sendTimes.poll();
+                if (sent != null) {
+                    long micros = (System.nanoTime() - sent) / 1000;
+                    totalLatency.record(micros);
+                    intervalLatency.record(micros);
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            if (this.sendTask != null) {
+                this.sendTask.cancel(false);
+            }
+        }
+    }
+}
@@ -2,15 +2,34 @@ package org.nethergames.proxytransport;
 
 import dev.waterdog.waterdogpe.network.protocol.ProtocolCodecs;
 import dev.waterdog.waterdogpe.plugin.Plugin;
+import org.nethergames.proxytransport.command.TransportMetricsCommand;
+import org.nethergames.proxytransport.compression.CompressionCache;
+import org.nethergames.proxytransport.compression.CompressionWorkers;
+import org.nethergames.proxytransport.compression.ZstdDictionary;
+import org.nethergames.proxytransport.compression.ZstdDictionaryTrainer;
+import org.nethergames.proxytransport.config.TransportConfig;
 import org.nethergames.proxytransport.integration.QuicTransportServerInfo;
 import org.nethergames.proxytransport.integration.TcpTransportServerInfo;
+import org.nethergames.proxytransport.integration.WarmConnectionPool;
+import org.nethergames.proxytransport.multiplex.MultiplexedConnectionPool;
 import org.nethergames.proxytransport.utils.CodecUpdater;
+import org.nethergames.proxytransport.utils.TransportEventLoops;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 public class ProxyTransport extends Plugin {
 
     @Override
     public void onStartup() {
+        this.saveResource("config.yml");
+        TransportConfig config = TransportConfig.load(this.getConfig());
+
         ProtocolCodecs.addUpdater(new CodecUpdater());
+        this.loadZstdDictionary(config);
+        if (config.isZstdCache()) {
+            CompressionCache.setCurrent(new CompressionCache(config.getZstdCacheMaxSize(), config.getZstdCacheMinBatchSize()));
+        }
 
         getLogger().info("ProxyTransport was started.");
         getLogger().info("Registered type with name {}", QuicTransportServerInfo.TYPE.getIdentifier());
@@ -19,6 +38,41 @@ public class ProxyTransport extends Plugin {
     
     @Override
     public void onEnable() {
+        this.getProxy().getCommandMap().registerCommand(new TransportMetricsCommand());
         getLogger().info("ProxyTransport was enabled.");
     }
+
+    @Override
+    public void onDisable() {
+        CompressionWorkers.shutdown();
+        WarmConnectionPool.closeAll();
+        MultiplexedConnectionPool.closeAll();
+        TransportEventLoops.shutdown();
+        CompressionCache.setCurrent(null);
+        getLogger().info("ProxyTransport was disabled.");
+    }
+
+    private void loadZstdDictionary(TransportConfig config) {
+        Path path = this.getDataFolder().toPath().resolve(config.getZstdDictionaryFile());
+
+        if (config.isZstdDictionaryEnabled()) {
+            if (Files.exists(path)) {
+                try {
+                    ZstdDictionary dictionary = ZstdDictionary.load(path);
+                    ZstdDictionary.setCurrent(dictionary);
+                    getLogger().info("Loaded Zstd dictionary with id {} ({} bytes)", dictionary.getId(), dictionary.getData().length);
+                } catch (Exception e) {
+                    getLogger().error("Failed to load Zstd dictionary from " + path, e);
+                }
+            } else {
+                getLogger().warn("Zstd dictionary is enabled but " + path + " does not exist, compressing without dictionary");
+            }
+        }
+
+        if (config.isZstdDictionaryCapture()) {
+            Path output = path.resolveSibling(path.getFileName() + ".trained");
+            ZstdDictionaryTrainer.setCurrent(new ZstdDictionaryTrainer(output, config.getZstdDictionaryCaptureSamples(), config.getZstdDictionaryCaptureMaxSampleSize(), config.getZstdDictionarySize()));
+            getLogger().info("Capturing {} batches to train a Zstd dictionary", config.getZstdDictionaryCaptureSamples());
+        }
+    }
 }
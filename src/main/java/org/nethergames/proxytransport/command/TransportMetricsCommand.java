@@ -0,0 +1,51 @@
+package org.nethergames.proxytransport.command;
+
+import dev.waterdog.waterdogpe.command.Command;
+import dev.waterdog.waterdogpe.command.CommandSender;
+import dev.waterdog.waterdogpe.command.CommandSettings;
+import org.nethergames.proxytransport.compression.CompressionCache;
+import org.nethergames.proxytransport.compression.CompressionWorkers;
+import org.nethergames.proxytransport.metrics.TransportMetrics;
+
+import java.util.Map;
+
+/**
+ * Prints the transport metrics of all downstream servers, or of the given server, in the Prometheus text format.
+ */
+public class TransportMetricsCommand extends Command {
+
+    public TransportMetricsCommand() {
+        super("transportmetrics", CommandSettings.builder()
+                .setDescription("Show ProxyTransport metrics")
+                .setUsageMessage("transportmetrics [server]")
+                .setPermission("proxytransport.command.metrics")
+                .build());
+    }
+
+    @Override
+    public boolean onExecute(CommandSender sender, String alias, String[] args) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, TransportMetrics> entry : TransportMetrics.getServers().entrySet()) {
+            if (args.length == 0 || entry.getKey().equalsIgnoreCase(args[0])) {
+                entry.getValue().appendTo(builder, entry.getKey());
+            }
+        }
+
+        CompressionCache cache = CompressionCache.getCurrent();
+        if (cache != null && args.length == 0) {
+            builder.append("proxytransport_compression_cache_hits ").append(cache.getHits()).append('\n');
+            builder.append("proxytransport_compression_cache_misses ").append(cache.getMisses()).append('\n');
+            builder.append("proxytransport_compression_cache_bytes ").append(cache.getSize()).append('\n');
+        }
+
+        if (args.length == 0 && CompressionWorkers.getOffloaded() + CompressionWorkers.getRejected() > 0) {
+            builder.append("proxytransport_compression_offloaded ").append(CompressionWorkers.getOffloaded()).append('\n');
+            builder.append("proxytransport_compression_offload_rejected ").append(CompressionWorkers.getRejected()).append('\n');
+            builder.append("proxytransport_compression_offload_queue_depth ").append(CompressionWorkers.getQueueDepth()).append('\n');
+            builder.append("proxytransport_compression_offload_active ").append(CompressionWorkers.getActiveCount()).append('\n');
+        }
+
+        sender.sendMessage(builder.isEmpty() ? "No transport metrics recorded yet" : builder.toString());
+        return true;
+    }
+}
@@ -0,0 +1,196 @@
+package org.nethergames.proxytransport.compression;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
+import org.cloudburstmc.protocol.bedrock.data.CompressionAlgorithm;
+import org.cloudburstmc.protocol.bedrock.netty.codec.compression.BatchCompression;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of compressed batches shared by all connections, keyed by a 128-bit hash of the uncompressed payload
+ * and the algorithm. Identical clientbound batches sent to many players are compressed once in the clients' algorithm,
+ * every hit gets a retained duplicate of the cached buffer. The cache is split into shards by hash, each with its own
+ * lock and an equal part of the maximum size, so event loops looking up different batches do not contend. Within a
+ * shard the least recently used entries are evicted once its bytes exceed its part.
+ */
+public class CompressionCache {
+    /**
+     * The channel of the player's upstream session, its compression codec tells which algorithm the client reads.
+     */
+    public static final AttributeKey<Channel> UPSTREAM_CHANNEL = AttributeKey.valueOf("proxytransport-upstream-channel");
+
+    private static final int SHARDS = 16; // power of two
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+
+    private static volatile CompressionCache current;
+
+    private final int minBatchSize;
+    private final Shard[] shards = new Shard[SHARDS];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxSize      maximum compressed bytes kept in the cache
+     * @param minBatchSize smaller batches are compressed directly, hashing them would cost about as much as compressing
+     */
+    public CompressionCache(long maxSize, int minBatchSize) {
+        this.minBatchSize = minBatchSize;
+        for (int index = 0; index < SHARDS; index++) {
+            this.shards[index] = new Shard(maxSize / SHARDS);
+        }
+    }
+
+    public static CompressionCache getCurrent() {
+        return current;
+    }
+
+    public static void setCurrent(CompressionCache cache) {
+        CompressionCache previous = current;
+        current = cache;
+        if (previous != null) {
+            previous.clear();
+        }
+    }
+
+    /**
+     * Get the compressed form of the batch from the cache, or compress and cache it.
+     * The returned buffer has to be released by the caller.
+     */
+    public ByteBuf compress(ChannelHandlerContext ctx, ByteBuf uncompressed, BatchCompression compression) throws Exception {
+        if (uncompressed.readableBytes() < this.minBatchSize) {
+            return compression.encode(ctx, uncompressed);
+        }
+
+        Key key = Key.of(uncompressed, compression.getAlgorithm());
+        Shard shard = this.shards[(int) key.hash1() & (SHARDS - 1)];
+        ByteBuf cached = shard.get(key);
+        if (cached != null) {
+            this.hits.increment();
+            return cached;
+        }
+
+        this.misses.increment();
+        ByteBuf compressed = compression.encode(ctx, uncompressed);
+        shard.put(key, compressed);
+        return compressed;
+    }
+
+    public void clear() {
+        for (Shard shard : this.shards) {
+            shard.clear();
+        }
+    }
+
+    public long getSize() {
+        long size = 0;
+        for (Shard shard : this.shards) {
+            size += shard.getSize();
+        }
+
+        return size;
+    }
+
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    private static class Shard {
+        private final long maxSize;
+        private final LinkedHashMap<Key, ByteBuf> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private long size;
+
+        private Shard(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @return a retained duplicate of the cached buffer, or null
+         */
+        private synchronized ByteBuf get(Key key) {
+            ByteBuf cached = this.entries.get(key);
+            return cached != null ? cached.retainedDuplicate() : null;
+        }
+
+        private synchronized void put(Key key, ByteBuf compressed) {
+            if (compressed.readableBytes() > this.maxSize) {
+                return;
+            }
+
+            ByteBuf previous = this.entries.put(key, compressed.retainedDuplicate());
+            if (previous != null) { // compressed concurrently by another connection
+                this.size -= previous.readableBytes();
+                previous.release();
+            }
+
+            this.size += compressed.readableBytes();
+
+            Iterator<Map.Entry<Key, ByteBuf>> iterator = this.entries.entrySet().iterator();
+            while (this.size > this.maxSize && iterator.hasNext()) {
+                ByteBuf evicted = iterator.next().getValue();
+                iterator.remove();
+
+                this.size -= evicted.readableBytes();
+                evicted.release();
+            }
+        }
+
+        private synchronized void clear() {
+            this.entries.values().forEach(ByteBuf::release);
+            this.entries.clear();
+            this.size = 0;
+        }
+
+        private synchronized long getSize() {
+            return this.size;
+        }
+    }
+
+    private record Key(long hash1, long hash2, int length, CompressionAlgorithm algorithm) {
+
+        /**
+         * Hash the payload in a single pass with two independently seeded lanes, so a collision needs both to match.
+         */
+        private static Key of(ByteBuf buf, CompressionAlgorithm algorithm) {
+            int length = buf.readableBytes();
+            long hash1 = PRIME_3 ^ length;
+            long hash2 = PRIME_1 ^ ((long) length << 32);
+
+            int index = buf.readerIndex();
+            int end = index + length;
+            for (; index + 8 <= end; index += 8) {
+                long value = buf.getLongLE(index);
+                hash1 = Long.rotateLeft(hash1 ^ (value * PRIME_2), 31) * PRIME_1;
+                hash2 = Long.rotateLeft(hash2 ^ (value * PRIME_1), 27) * PRIME_3;
+            }
+
+            for (; index < end; index++) {
+                long value = buf.getByte(index) & 0xff;
+                hash1 = Long.rotateLeft(hash1 ^ (value * PRIME_2), 11) * PRIME_1;
+                hash2 = Long.rotateLeft(hash2 ^ (value * PRIME_1), 13) * PRIME_3;
+            }
+
+            return new Key(avalanche(hash1), avalanche(hash2), length, algorithm);
+        }
+
+        private static long avalanche(long hash) {
+            hash ^= hash >>> 33;
+            hash *= PRIME_2;
+            hash ^= hash >>> 29;
+            hash *= PRIME_3;
+            return hash ^ (hash >>> 32);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.nethergames.proxytransport.compression;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.log4j.Log4j2;
+import org.nethergames.proxytransport.config.TransportConfig;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool compressing large batches away from the event loops, so one big batch does not stall every other
+ * connection on its loop. Created on first use and shut down with the plugin. The workers are FastThreadLocalThreads,
+ * so the native Zstd contexts they hold are freed when they exit.
+ */
+@Log4j2(topic = "ProxyTransport")
+public final class CompressionWorkers {
+    private static final LongAdder OFFLOADED = new LongAdder();
+    private static final LongAdder REJECTED = new LongAdder();
+
+    private static volatile ThreadPoolExecutor executor;
+
+    private CompressionWorkers() {
+    }
+
+    /**
+     * Run the task on a worker.
+     *
+     * @return false if the queue is full, the caller has to compress inline then
+     */
+    public static boolean submit(Runnable task) {
+        try {
+            get().execute(task);
+            OFFLOADED.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            REJECTED.increment();
+            return false;
+        }
+    }
+
+    private static ThreadPoolExecutor get() {
+        ThreadPoolExecutor current = executor;
+        if (current == null) {
+            synchronized (CompressionWorkers.class) {
+                if ((current = executor) == null) {
+                    TransportConfig config = TransportConfig.get();
+                    int threads = config.getZstdOffloadThreads() > 0 ? config.getZstdOffloadThreads() : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+                    current = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                            new ArrayBlockingQueue<>(config.getZstdOffloadQueueSize()), new DefaultThreadFactory("Transport-Compression", true));
+                    executor = current;
+                    log.info("Started {} compression workers", threads);
+                }
+            }
+        }
+
+        return current;
+    }
+
+    public static void shutdown() {
+        ThreadPoolExecutor current;
+        synchronized (CompressionWorkers.class) {
+            current = executor;
+            executor = null;
+        }
+
+        if (current != null) {
+            current.shutdown();
+            try {
+                current.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Get the number of batches waiting for a worker.
+     */
+    public static int getQueueDepth() {
+        ThreadPoolExecutor current = executor;
+        return current != null ? current.getQueue().size() : 0;
+    }
+
+    public static int getActiveCount() {
+        ThreadPoolExecutor current = executor;
+        return current != null ? current.getActiveCount() : 0;
+    }
+
+    public static long getOffloaded() {
+        return OFFLOADED.sum();
+    }
+
+    public static long getRejected() {
+        return REJECTED.sum();
+    }
+}
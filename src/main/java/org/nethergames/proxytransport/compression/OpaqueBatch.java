@@ -0,0 +1,19 @@
+package org.nethergames.proxytransport.compression;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+import lombok.Getter;
+import org.cloudburstmc.protocol.bedrock.data.CompressionAlgorithm;
+
+/**
+ * A clientbound batch forwarded to the player without being decompressed. The content starts with the compression header.
+ */
+@Getter
+public class OpaqueBatch extends DefaultByteBufHolder {
+    private final CompressionAlgorithm algorithm;
+
+    public OpaqueBatch(ByteBuf compressed, CompressionAlgorithm algorithm) {
+        super(compressed);
+        this.algorithm = algorithm;
+    }
+}
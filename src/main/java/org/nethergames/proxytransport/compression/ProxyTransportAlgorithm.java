@@ -3,7 +3,8 @@ package org.nethergames.proxytransport.compression;
 import org.cloudburstmc.protocol.bedrock.data.CompressionAlgorithm;
 
 public enum ProxyTransportAlgorithm implements CompressionAlgorithm {
-    ZSTD;
+    ZSTD,
+    ZSTD_DICTIONARY;
 
     private ProxyTransportAlgorithm() {
 
@@ -3,28 +3,69 @@ package org.nethergames.proxytransport.compression;
 import dev.waterdog.waterdogpe.network.connection.codec.compression.ProxiedCompressionCodec;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelException;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.EncoderException;
+import io.netty.util.ReferenceCountUtil;
 import org.cloudburstmc.protocol.bedrock.data.CompressionAlgorithm;
 import org.cloudburstmc.protocol.bedrock.data.PacketCompressionAlgorithm;
 import org.cloudburstmc.protocol.bedrock.netty.BedrockBatchWrapper;
 import org.cloudburstmc.protocol.bedrock.netty.codec.compression.BatchCompression;
+import org.cloudburstmc.protocol.bedrock.netty.codec.compression.CompressionCodec;
 import org.cloudburstmc.protocol.bedrock.netty.codec.compression.CompressionStrategy;
+import org.nethergames.proxytransport.config.TransportConfig;
+import org.nethergames.proxytransport.impl.OpaquePassThrough;
+import org.nethergames.proxytransport.metrics.TransportMetrics;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ProxyTransportCompressionCodec extends ProxiedCompressionCodec {
+    private static final ZstdCompression PLAIN_ZSTD = new ZstdCompression(null);
+
     private final boolean prefixed;
     private final ZstdCompression zstdCompression = new ZstdCompression();
+    private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<>();
+    private ChannelHandlerContext ctx;
+    private boolean fusedFraming;
+    private int offloadMinBatchSize;
+    private TransportMetrics metrics;
 
     public ProxyTransportCompressionCodec(CompressionStrategy strategy, boolean prefixed) {
         super(strategy, prefixed);
         this.prefixed = prefixed;
     }
 
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        super.handlerAdded(ctx);
+        this.ctx = ctx;
+        this.fusedFraming = ctx.pipeline().get(TransportFrameCodec.class) != null;
+        this.metrics = ctx.channel().attr(TransportMetrics.ATTRIBUTE).get();
+
+        TransportConfig config = TransportConfig.get();
+        this.offloadMinBatchSize = config.isZstdOffload() ? Math.max(1, config.getZstdOffloadMinBatchSize()) : 0;
+    }
+
     protected void encode(ChannelHandlerContext ctx, BedrockBatchWrapper msg, List<Object> out) throws Exception {
         if (msg.getCompressed() == null && msg.getUncompressed() == null) {
             throw new IllegalStateException("Batch was not encoded before");
         } else if (msg.getCompressed() != null && !msg.isModified()) { // already compressed
+            if (this.metrics != null) {
+                this.metrics.recordPassedThrough(msg.getCompressed().readableBytes());
+            }
+
+            if (!this.prefixed && this.fusedFraming) { // the frame encoder writes the header together with the length
+                this.onPassedThrough(ctx, msg);
+                out.add(new TransportFrame(getCompressionHeader(msg.getAlgorithm()), msg.getCompressed().retainedSlice()));
+                return;
+            }
+
             if (!this.prefixed) { // we need to prefix the compressed data
                 CompositeByteBuf buf = ctx.alloc().compositeDirectBuffer(2);
                 buf.addComponent(true, ctx.alloc().ioBuffer(1).writeByte(getCompressionHeader(msg.getAlgorithm())));
@@ -35,33 +76,342 @@ public class ProxyTransportCompressionCodec extends ProxiedCompressionCodec {
             this.onPassedThrough(ctx, msg);
             out.add(msg.retain());
         } else {
-            BatchCompression compression = this.getStrategy().getCompression(msg);
-            if (!compression.getAlgorithm().equals(PacketCompressionAlgorithm.NONE)) {
-                compression = this.zstdCompression;
+            BatchCompression compression = this.prepareCompression(msg);
+            this.encodeCompressed(ctx, msg, compression, this.compress(ctx, msg, compression), out);
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (this.offloadMinBatchSize > 0 && msg instanceof BedrockBatchWrapper batch && this.offload(ctx, batch, promise)) {
+            return;
+        }
+
+        if (this.pendingWrites.isEmpty()) {
+            super.write(ctx, msg, promise);
+        } else { // keep the order of the frames behind batches still being compressed
+            this.pendingWrites.add(new PendingWrite(this, msg, promise, null));
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        PendingWrite last = this.pendingWrites.peekLast();
+        if (last != null) {
+            last.flush = true;
+        }
+
+        ctx.flush();
+    }
+
+    /**
+     * A codec replaced by another one, like when the compression changes, hands its queue over to the replacement, which
+     * writes the batches in their order once their compression is done. Otherwise they are failed.
+     */
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (!this.pendingWrites.isEmpty() && ctx.channel().isActive()
+                && ctx.pipeline().get(CompressionCodec.NAME) instanceof ProxyTransportCompressionCodec replacement && replacement != this) {
+            replacement.adoptPendingWrites(this.pendingWrites);
+        }
+
+        PendingWrite pending;
+        while ((pending = this.pendingWrites.poll()) != null) {
+            pending.promise.tryFailure(new ChannelException("Compression codec removed before the batch was written"));
+            if (pending.compression == null || pending.done) {
+                ReferenceCountUtil.release(pending.compressed);
+                ReferenceCountUtil.release(pending.msg);
+            } else {
+                pending.cancelled = true; // released once the worker is done with it
             }
+        }
+
+        super.handlerRemoved(ctx);
+    }
 
-            ByteBuf compressed = compression.encode(ctx, msg.getUncompressed());
+    private void adoptPendingWrites(ArrayDeque<PendingWrite> pendingWrites) {
+        PendingWrite pending;
+        while ((pending = pendingWrites.poll()) != null) {
+            pending.owner = this;
+            this.pendingWrites.add(pending);
+        }
+
+        this.writePending(this.ctx);
+    }
 
+    /**
+     * Compress the batch on a worker if it is large enough. The result is written from the event loop, after all
+     * frames written before it.
+     */
+    private boolean offload(ChannelHandlerContext ctx, BedrockBatchWrapper msg, ChannelPromise promise) {
+        if (msg.getUncompressed() == null || (msg.getCompressed() != null && !msg.isModified())
+                || msg.getUncompressed().readableBytes() < this.offloadMinBatchSize) {
+            return false;
+        }
+
+        BatchCompression compression = this.prepareCompression(msg);
+        if (compression != this.zstdCompression) {
+            return false;
+        }
+
+        PendingWrite pending = new PendingWrite(this, msg, promise, compression);
+        this.pendingWrites.add(pending);
+        if (!CompressionWorkers.submit(() -> this.compressOffloaded(ctx, pending))) { // all workers are busy, compress inline
             try {
-                ByteBuf outBuf;
+                pending.compressed = this.compress(ctx, msg, compression);
+            } catch (Throwable t) {
+                pending.cause = t;
+            }
+
+            pending.done = true;
+            this.writePending(ctx);
+        }
 
-                outBuf = ctx.alloc().ioBuffer(1 + compressed.readableBytes());
-                outBuf.writeByte(this.getCompressionHeader(compression.getAlgorithm()));
-                outBuf.writeBytes(compressed);
+        return true;
+    }
+
+    private void compressOffloaded(ChannelHandlerContext ctx, PendingWrite pending) {
+        try {
+            pending.compressed = this.compress(ctx, (BedrockBatchWrapper) pending.msg, pending.compression);
+        } catch (Throwable t) {
+            pending.cause = t;
+        }
 
-                msg.setCompressed(outBuf, compression.getAlgorithm());
-            } finally {
-                compressed.release();
+        try {
+            ctx.executor().execute(() -> {
+                pending.done = true;
+                if (pending.cancelled) {
+                    ReferenceCountUtil.release(pending.compressed);
+                    ReferenceCountUtil.release(pending.msg);
+                } else {
+                    pending.owner.writePending(pending.owner.ctx); // the codec may have been replaced in the meantime
+                }
+            });
+        } catch (RejectedExecutionException e) { // the event loop is shutting down
+            ReferenceCountUtil.release(pending.compressed);
+            ReferenceCountUtil.release(pending.msg);
+        }
+    }
+
+    /**
+     * Write all batches at the head of the queue which are ready, stopping at the first one still being compressed.
+     */
+    private void writePending(ChannelHandlerContext ctx) {
+        PendingWrite pending;
+        while ((pending = this.pendingWrites.peek()) != null && (pending.compression == null || pending.done)) {
+            this.pendingWrites.poll();
+            if (pending.compression == null) {
+                try {
+                    super.write(ctx, pending.msg, pending.promise);
+                } catch (Throwable t) {
+                    pending.promise.tryFailure(t);
+                }
+            } else {
+                this.writeCompressed(ctx, pending);
             }
 
+            if (pending.flush) {
+                ctx.flush();
+            }
+        }
+    }
+
+    private void writeCompressed(ChannelHandlerContext ctx, PendingWrite pending) {
+        BedrockBatchWrapper msg = (BedrockBatchWrapper) pending.msg;
+        List<Object> out = new ArrayList<>(1);
+        try {
+            if (pending.cause != null) {
+                pending.promise.tryFailure(new EncoderException(pending.cause));
+                return;
+            }
+
+            this.encodeCompressed(ctx, msg, pending.compression, pending.compressed, out);
+        } catch (Throwable t) {
+            out.forEach(ReferenceCountUtil::release);
+            pending.promise.tryFailure(t);
+            return;
+        } finally {
+            msg.release();
+        }
+
+        ctx.write(out.get(0), pending.promise);
+    }
+
+    /**
+     * Select the compression of a rewritten batch. Compressed batches use Zstd, whatever the strategy says.
+     */
+    private BatchCompression prepareCompression(BedrockBatchWrapper msg) {
+        BatchCompression compression = this.getStrategy().getCompression(msg);
+        if (!compression.getAlgorithm().equals(PacketCompressionAlgorithm.NONE)) {
+            compression = this.zstdCompression;
+
+            ZstdDictionaryTrainer trainer = ZstdDictionaryTrainer.getCurrent();
+            if (trainer != null) {
+                trainer.capture(msg.getUncompressed());
+            }
+        }
+
+        return compression;
+    }
+
+    /**
+     * Compress the uncompressed payload of the batch. Safe to call from a compression worker.
+     */
+    private ByteBuf compress(ChannelHandlerContext ctx, BedrockBatchWrapper msg, BatchCompression compression) throws Exception {
+        int uncompressedLength = msg.getUncompressed().readableBytes();
+        long start = System.nanoTime();
+        ByteBuf compressed = compression.encode(ctx, msg.getUncompressed());
+        if (this.metrics != null) {
+            this.metrics.recordRecompressed(compression.getAlgorithm(), compressed.readableBytes(), uncompressedLength, System.nanoTime() - start);
+        }
+
+        return compressed;
+    }
+
+    /**
+     * Frame the compressed payload, taking over its reference.
+     */
+    private void encodeCompressed(ChannelHandlerContext ctx, BedrockBatchWrapper msg, BatchCompression compression, ByteBuf compressed, List<Object> out) {
+        if (this.fusedFraming) {
+            msg.setCompressed(compressed, compression.getAlgorithm());
             this.onCompressed(ctx, msg);
-            out.add(msg.retain());
+            out.add(new TransportFrame(this.getCompressionHeader(compression.getAlgorithm()), compressed.retain()));
+            return;
+        }
+
+        try {
+            ByteBuf outBuf;
+
+            outBuf = ctx.alloc().ioBuffer(1 + compressed.readableBytes());
+            outBuf.writeByte(this.getCompressionHeader(compression.getAlgorithm()));
+            outBuf.writeBytes(compressed);
+
+            msg.setCompressed(outBuf, compression.getAlgorithm());
+        } finally {
+            compressed.release();
+        }
+
+        this.onCompressed(ctx, msg);
+        out.add(msg.retain());
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, BedrockBatchWrapper msg, List<Object> out) throws Exception {
+        ByteBuf compressed = msg.getCompressed();
+        if (!this.prefixed || !compressed.isReadable()) {
+            this.decodeDefault(ctx, msg, out);
+            return;
+        }
+
+        byte header = compressed.getByte(compressed.readerIndex());
+        OpaquePassThrough opaque = ctx.channel().attr(OpaquePassThrough.ATTRIBUTE).get();
+        if (header == OpaquePassThrough.MARKER) {
+            compressed.skipBytes(1);
+            if (!compressed.isReadable()) {
+                throw new CorruptedFrameException("Opaque batch without compression header");
+            }
+
+            header = compressed.getByte(compressed.readerIndex());
+            if (opaque == OpaquePassThrough.MARKED && header != -2 && header != -3) {
+                this.decodeOpaque(compressed, header, out);
+                return;
+            }
+        }
+
+        if (header != -2 && header != -3) {
+            this.decodeDefault(ctx, msg, out);
+            return;
+        }
+
+        ZstdCompression compression = this.getZstdCompression(this.getCompressionAlgorithm0(header));
+        int compressedLength = compressed.readableBytes();
+        msg.setAlgorithm(compression.getAlgorithm());
+        msg.setUncompressed(compression.decode(ctx, compressed.slice(compressed.readerIndex() + 1, compressedLength - 1)));
+        if (!this.precompressForClient(ctx, msg)) {
+            msg.modify(); // clients cannot read Zstd, so the batch is recompressed to the client's native algorithm
+        }
+
+        if (this.metrics != null) {
+            this.metrics.recordInbound(compression.getAlgorithm(), compressedLength, msg.getUncompressed().readableBytes());
+        }
+
+        this.onDecompressed(ctx, msg);
+        out.add(msg.retain());
+    }
+
+    /**
+     * Compress a decoded Zstd batch in the client's native algorithm through the shared cache. A broadcast the downstream
+     * server sends to many players is then compressed once, instead of once per player by the upstream codec.
+     * The upstream codec passes the batch through unless the proxy modifies it.
+     *
+     * @return false if the cache is disabled or the client's compression is unknown
+     */
+    private boolean precompressForClient(ChannelHandlerContext ctx, BedrockBatchWrapper msg) throws Exception {
+        CompressionCache cache = CompressionCache.getCurrent();
+        Channel upstream = ctx.channel().attr(CompressionCache.UPSTREAM_CHANNEL).get();
+        if (cache == null || upstream == null || !(upstream.pipeline().get(CompressionCodec.NAME) instanceof CompressionCodec upstreamCodec)) {
+            return false;
+        }
+
+        BatchCompression compression = upstreamCodec.getStrategy().getDefaultCompression();
+        if (compression.getAlgorithm().equals(PacketCompressionAlgorithm.NONE)) {
+            return false;
+        }
+
+        ByteBuf compressed = cache.compress(ctx, msg.getUncompressed(), compression);
+        CompositeByteBuf buf = ctx.alloc().compositeDirectBuffer(2); // Zstd is only sent to clients with prefixed batches
+        buf.addComponent(true, ctx.alloc().ioBuffer(1).writeByte(this.getCompressionHeader(compression.getAlgorithm())));
+        buf.addComponent(true, compressed);
+        msg.setCompressed(buf, compression.getAlgorithm());
+        return true;
+    }
+
+    /**
+     * Hand the batch on still compressed, the connection forwards it to the player as is.
+     */
+    private void decodeOpaque(ByteBuf compressed, byte header, List<Object> out) {
+        CompressionAlgorithm algorithm = this.getCompressionAlgorithm0(header);
+        if (this.metrics != null) {
+            this.metrics.recordInboundCompressed(compressed.readableBytes());
         }
+
+        out.add(new OpaqueBatch(compressed.retainedSlice(), algorithm));
+    }
+
+    private void decodeDefault(ChannelHandlerContext ctx, BedrockBatchWrapper msg, List<Object> out) throws Exception {
+        int compressedLength = msg.getCompressed().readableBytes();
+        super.decode(ctx, msg, out);
+
+        if (this.metrics != null) {
+            if (msg.getUncompressed() != null) {
+                this.metrics.recordInbound(msg.getAlgorithm(), compressedLength, msg.getUncompressed().readableBytes());
+            } else {
+                this.metrics.recordInboundCompressed(compressedLength);
+            }
+        }
+    }
+
+    private ZstdCompression getZstdCompression(CompressionAlgorithm algorithm) {
+        if (algorithm == ProxyTransportAlgorithm.ZSTD) {
+            return PLAIN_ZSTD;
+        }
+
+        if (this.zstdCompression.getDictionary() == null) {
+            throw new CorruptedFrameException("Received a Zstd dictionary frame but no dictionary is loaded");
+        }
+
+        return this.zstdCompression;
+    }
+
+    public boolean isPrefixed() {
+        return this.prefixed;
     }
 
     protected byte getCompressionHeader0(CompressionAlgorithm algorithm) {
-        if (algorithm instanceof ProxyTransportAlgorithm) {
+        if (algorithm == ProxyTransportAlgorithm.ZSTD) {
             return -2;
+        } else if (algorithm == ProxyTransportAlgorithm.ZSTD_DICTIONARY) {
+            return -3;
         }
 
         return super.getCompressionHeader0(algorithm);
@@ -70,8 +420,35 @@ public class ProxyTransportCompressionCodec extends ProxiedCompressionCodec {
     protected CompressionAlgorithm getCompressionAlgorithm0(byte header) {
         if (header == -2) {
             return ProxyTransportAlgorithm.ZSTD;
+        } else if (header == -3) {
+            return ProxyTransportAlgorithm.ZSTD_DICTIONARY;
         }
 
         return super.getCompressionAlgorithm0(header);
     }
+
+    private static class PendingWrite {
+        private final Object msg;
+        private final ChannelPromise promise;
+        /**
+         * Set for batches compressed by a worker, null for messages only waiting for their turn.
+         */
+        private final BatchCompression compression;
+        private ByteBuf compressed;
+        private Throwable cause;
+        private boolean done;
+        private boolean cancelled;
+        private boolean flush;
+        /**
+         * The codec whose queue holds this write.
+         */
+        private ProxyTransportCompressionCodec owner;
+
+        private PendingWrite(ProxyTransportCompressionCodec owner, Object msg, ChannelPromise promise, BatchCompression compression) {
+            this.owner = owner;
+            this.msg = msg;
+            this.promise = promise;
+            this.compression = compression;
+        }
+    }
 }
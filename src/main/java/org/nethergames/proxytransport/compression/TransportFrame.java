@@ -0,0 +1,19 @@
+package org.nethergames.proxytransport.compression;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+import lombok.Getter;
+
+/**
+ * A compressed batch payload whose compression header still has to be written in front of it.
+ * The header is written by {@link TransportFrameEncoder} together with the frame length, so the payload is never copied.
+ */
+@Getter
+public class TransportFrame extends DefaultByteBufHolder {
+    private final byte header;
+
+    public TransportFrame(byte header, ByteBuf payload) {
+        super(payload);
+        this.header = header;
+    }
+}
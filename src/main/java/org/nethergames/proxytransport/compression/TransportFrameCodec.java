@@ -0,0 +1,19 @@
+package org.nethergames.proxytransport.compression;
+
+import io.netty.channel.CombinedChannelDuplexHandler;
+import org.nethergames.proxytransport.config.TransportConfig;
+
+/**
+ * Replaces the length field decoder, length prepender and {@link FrameIdCodec} with a single handler.
+ */
+public class TransportFrameCodec extends CombinedChannelDuplexHandler<TransportFrameDecoder, TransportFrameEncoder> {
+    public static final String NAME = "transport-frame-codec";
+
+    public TransportFrameCodec() {
+        this(TransportConfig.get().getMaxFrameLength());
+    }
+
+    public TransportFrameCodec(int maxFrameLength) {
+        super(new TransportFrameDecoder(maxFrameLength, true), new TransportFrameEncoder());
+    }
+}
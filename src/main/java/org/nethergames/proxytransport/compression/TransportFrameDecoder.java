@@ -0,0 +1,56 @@
+package org.nethergames.proxytransport.compression;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import org.cloudburstmc.protocol.bedrock.netty.BedrockBatchWrapper;
+
+import java.util.List;
+
+/**
+ * Splits the stream into length prefixed frames without copying the payload. Reads are accumulated in a composite buffer,
+ * so frames spanning several reads are sliced instead of merged. Such slices consist of several buffers, consumers
+ * needing a single contiguous buffer have to check {@link ByteBuf#nioBufferCount()}.
+ */
+public class TransportFrameDecoder extends ByteToMessageDecoder {
+    private final int maxFrameLength;
+    private final boolean wrapBatches;
+
+    /**
+     * @param maxFrameLength frames declaring a larger length are rejected before any of their payload is buffered
+     * @param wrapBatches    emit frames as {@link BedrockBatchWrapper}s, or as plain buffers for {@link FrameIdCodec}
+     */
+    public TransportFrameDecoder(int maxFrameLength, boolean wrapBatches) {
+        this.maxFrameLength = maxFrameLength;
+        this.wrapBatches = wrapBatches;
+        this.setCumulator(COMPOSITE_CUMULATOR);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        while (in.readableBytes() >= 4) {
+            int length = in.getInt(in.readerIndex());
+            if (length < 0) {
+                in.skipBytes(in.readableBytes());
+                ctx.close();
+                throw new CorruptedFrameException("Negative frame length: " + length);
+            }
+
+            if (length > this.maxFrameLength) {
+                in.skipBytes(in.readableBytes()); // the stream cannot be resynchronized, drop what was buffered
+                ctx.close();
+                throw new TooLongFrameException("Frame length exceeds " + this.maxFrameLength + ": " + length);
+            }
+
+            if (in.readableBytes() - 4 < length) {
+                return;
+            }
+
+            in.skipBytes(4);
+            ByteBuf frame = in.readRetainedSlice(length);
+            out.add(this.wrapBatches ? BedrockBatchWrapper.newInstance(frame, null) : frame);
+        }
+    }
+}
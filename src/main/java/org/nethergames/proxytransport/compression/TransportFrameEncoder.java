@@ -0,0 +1,41 @@
+package org.nethergames.proxytransport.compression;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import org.cloudburstmc.protocol.bedrock.netty.BedrockBatchWrapper;
+
+/**
+ * Writes the frame length and, if required, the compression header into one small buffer, followed by the payload itself.
+ */
+public class TransportFrameEncoder extends ChannelOutboundHandlerAdapter {
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (msg instanceof TransportFrame frame) {
+            this.writeFrame(ctx, true, frame.getHeader(), frame.content(), promise);
+        } else if (msg instanceof BedrockBatchWrapper batch) {
+            try {
+                this.writeFrame(ctx, false, (byte) 0, batch.getCompressed().retain(), promise);
+            } finally {
+                batch.release();
+            }
+        } else if (msg instanceof ByteBuf buf) {
+            this.writeFrame(ctx, false, (byte) 0, buf, promise);
+        } else {
+            ctx.write(msg, promise);
+        }
+    }
+
+    private void writeFrame(ChannelHandlerContext ctx, boolean hasHeader, byte compressionHeader, ByteBuf payload, ChannelPromise promise) {
+        ByteBuf header = ctx.alloc().ioBuffer(hasHeader ? 5 : 4);
+        header.writeInt(payload.readableBytes() + (hasHeader ? 1 : 0));
+        if (hasHeader) {
+            header.writeByte(compressionHeader);
+        }
+
+        ctx.write(header, ctx.voidPromise());
+        ctx.write(payload, promise);
+    }
+}
@@ -1,44 +1,106 @@
 package org.nethergames.proxytransport.compression;
 
 import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdException;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.FastThreadLocal;
 import org.cloudburstmc.protocol.bedrock.data.CompressionAlgorithm;
 import org.cloudburstmc.protocol.bedrock.netty.codec.compression.BatchCompression;
+import org.nethergames.proxytransport.config.TransportConfig;
 
 import java.nio.ByteBuffer;
 
 public class ZstdCompression implements BatchCompression {
-    private int level = -1;
+    private static final int OUTPUT_SLACK = 64;
+
+    /**
+     * Compression state of the current event loop, shared by all connections running on it.
+     */
+    private static final FastThreadLocal<EncoderState> ENCODER_STATE = new FastThreadLocal<>() {
+        @Override
+        protected EncoderState initialValue() {
+            return new EncoderState();
+        }
+
+        @Override
+        protected void onRemoval(EncoderState state) {
+            state.ctx.close();
+        }
+    };
+
+    private static final FastThreadLocal<DecoderState> DECODER_STATE = new FastThreadLocal<>() {
+        @Override
+        protected DecoderState initialValue() {
+            return new DecoderState();
+        }
+
+        @Override
+        protected void onRemoval(DecoderState state) {
+            state.close();
+        }
+    };
+
+    private final ZstdDictionary dictionary;
+    private int level = TransportConfig.get().getZstdLevel();
+
+    public ZstdCompression() {
+        this(ZstdDictionary.getCurrent());
+    }
+
+    /**
+     * @param dictionary the dictionary used for both directions, or null to use plain Zstd frames (header 254)
+     */
+    public ZstdCompression(ZstdDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
 
     public ByteBuf encode(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
         ByteBuf direct;
-        if (!msg.isDirect() || msg instanceof CompositeByteBuf) {
+        if (!msg.isDirect() || msg.nioBufferCount() != 1) { // zstd-jni needs one direct buffer, slices of composites are not
             direct = ctx.alloc().ioBuffer(msg.readableBytes());
             direct.writeBytes(msg);
         } else {
             direct = msg;
         }
 
-        ByteBuf output = ctx.alloc().directBuffer();
-        try {
-            int uncompressedLength = direct.readableBytes();
-            int maxLength = (int) Zstd.compressBound(uncompressedLength);
+        // Adaptive levels belong to event loops, batches compressed by a worker use the configured level
+        ZstdLevelController controller = TransportConfig.get().isZstdAdaptive() && ctx.executor().inEventLoop() ? ZstdLevelController.current() : null;
+        EncoderState state = ENCODER_STATE.get();
+        state.prepare(controller != null ? controller.getLevel() : this.level, this.dictionary);
 
-            output.ensureWritable(maxLength);
+        int uncompressedLength = direct.readableBytes();
+        int maxLength = (int) Zstd.compressBound(uncompressedLength);
+        int estimatedLength = Math.min(maxLength, (int) (uncompressedLength * state.ratio * 1.25) + OUTPUT_SLACK);
+
+        ByteBuf output = ctx.alloc().directBuffer(estimatedLength);
+        try {
+            ByteBuffer sourceNio = direct.nioBuffer(direct.readerIndex(), uncompressedLength);
 
+            long start = System.nanoTime();
             int compressedLength;
-            if (direct.hasMemoryAddress()) {
-                compressedLength = (int) Zstd.compressUnsafe(output.memoryAddress(), maxLength, direct.memoryAddress() + direct.readerIndex(), uncompressedLength, this.level);
-            } else {
-                ByteBuffer sourceNio = direct.nioBuffer(direct.readerIndex(), direct.readableBytes());
-                ByteBuffer targetNio = output.nioBuffer(0, maxLength);
+            try {
+                compressedLength = state.ctx.compressDirectByteBuffer(output.nioBuffer(0, estimatedLength), 0, estimatedLength, sourceNio, 0, uncompressedLength);
+            } catch (ZstdException e) {
+                if (e.getErrorCode() != Zstd.errDstSizeTooSmall() || estimatedLength == maxLength) {
+                    throw e;
+                }
 
-                compressedLength = Zstd.compress(targetNio, sourceNio, this.level);
+                // The estimate was too small for this batch, retry with the worst case bound
+                output.ensureWritable(maxLength);
+                compressedLength = state.ctx.compressDirectByteBuffer(output.nioBuffer(0, maxLength), 0, maxLength, sourceNio, 0, uncompressedLength);
             }
 
+            if (controller != null) {
+                controller.record(ctx, uncompressedLength, System.nanoTime() - start);
+            }
+
+            state.updateRatio(uncompressedLength, compressedLength);
             output.writerIndex(compressedLength);
             return output.retain();
         } finally {
@@ -49,14 +111,64 @@ public class ZstdCompression implements BatchCompression {
         }
     }
 
-    public ByteBuf decode(ChannelHandlerContext channelHandlerContext, ByteBuf byteBuf) throws Exception {
-        throw new UnsupportedOperationException("Zstd is not supported");
+    public ByteBuf decode(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+        ByteBuf direct;
+        if (!msg.isDirect() || msg.nioBufferCount() != 1) {
+            direct = ctx.alloc().ioBuffer(msg.readableBytes());
+            direct.writeBytes(msg);
+        } else {
+            direct = msg;
+        }
+
+        try {
+            int compressedLength = direct.readableBytes();
+            ByteBuffer sourceNio = direct.nioBuffer(direct.readerIndex(), compressedLength);
+
+            // The frame header tells us the decompressed size, so the output can be allocated once and bounded up front
+            long decompressedLength = Zstd.getDirectByteBufferFrameContentSize(sourceNio, 0, compressedLength);
+            if (decompressedLength < 0) {
+                throw new CorruptedFrameException("Zstd frame does not declare a valid content size");
+            }
+
+            int maxDecompressedSize = TransportConfig.get().getZstdMaxDecompressedSize();
+            if (decompressedLength > maxDecompressedSize) {
+                throw new TooLongFrameException("Zstd frame exceeds maximum decompressed size: " + decompressedLength + " > " + maxDecompressedSize);
+            }
+
+            ByteBuf output = ctx.alloc().directBuffer((int) decompressedLength);
+            try {
+                if (decompressedLength > 0) {
+                    ZstdDecompressCtx decompressCtx = DECODER_STATE.get().getContext(this.dictionary);
+                    int written = decompressCtx.decompressDirectByteBuffer(output.nioBuffer(0, (int) decompressedLength), 0, (int) decompressedLength, sourceNio, 0, compressedLength);
+                    if (written != decompressedLength) {
+                        throw new CorruptedFrameException("Zstd frame decompressed to " + written + " bytes, expected " + decompressedLength);
+                    }
+
+                    output.writerIndex(written);
+                }
+
+                return output.retain();
+            } finally {
+                ReferenceCountUtil.release(output);
+            }
+        } finally {
+            if (direct != msg) {
+                ReferenceCountUtil.release(direct);
+            }
+        }
     }
 
     public CompressionAlgorithm getAlgorithm() {
-        return ProxyTransportAlgorithm.ZSTD;
+        return this.dictionary != null ? ProxyTransportAlgorithm.ZSTD_DICTIONARY : ProxyTransportAlgorithm.ZSTD;
+    }
+
+    public ZstdDictionary getDictionary() {
+        return this.dictionary;
     }
 
+    /**
+     * Set the level used by this instance. Ignored while the adaptive level controller is enabled.
+     */
     public void setLevel(int level) {
         this.level = level;
     }
@@ -64,4 +176,63 @@ public class ZstdCompression implements BatchCompression {
     public int getLevel() {
         return level;
     }
+
+    private static class EncoderState {
+        private final ZstdCompressCtx ctx = new ZstdCompressCtx();
+        private int level = Integer.MIN_VALUE;
+        private ZstdDictionary dictionary;
+        private double ratio = 0.5; // running estimate of compressed / uncompressed size
+
+        private void prepare(int level, ZstdDictionary dictionary) {
+            if (this.level == level && this.dictionary == dictionary) {
+                return;
+            }
+
+            this.ctx.reset();
+            this.ctx.setLevel(level);
+            if (dictionary != null) {
+                this.ctx.loadDict(dictionary.getCompress(level));
+            }
+
+            this.level = level;
+            this.dictionary = dictionary;
+        }
+
+        private void updateRatio(int uncompressedLength, int compressedLength) {
+            if (uncompressedLength > 0) {
+                this.ratio = this.ratio * 0.9 + ((double) compressedLength / uncompressedLength) * 0.1;
+            }
+        }
+    }
+
+    private static class DecoderState {
+        private final ZstdDecompressCtx plainCtx = new ZstdDecompressCtx();
+        private ZstdDecompressCtx dictionaryCtx;
+        private ZstdDictionary dictionary;
+
+        private ZstdDecompressCtx getContext(ZstdDictionary dictionary) {
+            if (dictionary == null) {
+                return this.plainCtx;
+            }
+
+            if (this.dictionary != dictionary) {
+                if (this.dictionaryCtx != null) {
+                    this.dictionaryCtx.close();
+                }
+
+                this.dictionaryCtx = new ZstdDecompressCtx();
+                this.dictionaryCtx.loadDict(dictionary.getDecompress());
+                this.dictionary = dictionary;
+            }
+
+            return this.dictionaryCtx;
+        }
+
+        private void close() {
+            this.plainCtx.close();
+            if (this.dictionaryCtx != null) {
+                this.dictionaryCtx.close();
+            }
+        }
+    }
 }
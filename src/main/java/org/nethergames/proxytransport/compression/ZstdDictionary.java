@@ -0,0 +1,54 @@
+package org.nethergames.proxytransport.compression;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A trained Zstd dictionary shared by the proxy and the downstream servers.
+ * The dictionary id is written into every Zstd frame header, so both sides can tell which dictionary a frame was compressed with.
+ */
+public class ZstdDictionary {
+    private static volatile ZstdDictionary current;
+
+    @Getter
+    private final byte[] data;
+    @Getter
+    private final long id;
+    @Getter
+    private final ZstdDictDecompress decompress;
+    private final Map<Integer, ZstdDictCompress> compressByLevel = new ConcurrentHashMap<>();
+
+    public ZstdDictionary(byte[] data) {
+        this.data = data;
+        this.id = Zstd.getDictIdFromDict(data);
+        this.decompress = new ZstdDictDecompress(data);
+    }
+
+    /**
+     * Get the pre-digested compression dictionary for the given level. The level is fixed when a dictionary is digested,
+     * so one instance is kept per level.
+     */
+    public ZstdDictCompress getCompress(int level) {
+        return this.compressByLevel.computeIfAbsent(level, l -> new ZstdDictCompress(this.data, l));
+    }
+
+    public static ZstdDictionary load(Path path) throws IOException {
+        return new ZstdDictionary(Files.readAllBytes(path));
+    }
+
+    public static ZstdDictionary getCurrent() {
+        return current;
+    }
+
+    public static void setCurrent(ZstdDictionary dictionary) {
+        current = dictionary;
+    }
+}
@@ -0,0 +1,91 @@
+package org.nethergames.proxytransport.compression;
+
+import com.github.luben.zstd.ZstdDictTrainer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Captures uncompressed batches and trains a Zstd dictionary from them once enough samples were collected.
+ * The trained dictionary is written next to the configured one and has to be deployed on the downstream servers before it is used.
+ */
+@Log4j2(topic = "ProxyTransport")
+public class ZstdDictionaryTrainer {
+    /**
+     * The trainer allocates its whole sample buffer up front, so it is capped no matter how many samples are configured.
+     */
+    public static final int MAX_SAMPLE_BUFFER_SIZE = 64 * 1024 * 1024;
+
+    private static volatile ZstdDictionaryTrainer current;
+
+    private final ZstdDictTrainer trainer;
+    private final Path output;
+    private final int maxSamples;
+    private final int maxSampleSize;
+    private final AtomicInteger samples = new AtomicInteger();
+    private final AtomicBoolean training = new AtomicBoolean();
+
+    public ZstdDictionaryTrainer(Path output, int maxSamples, int maxSampleSize, int dictionarySize) {
+        if (maxSamples <= 0 || maxSampleSize <= 0) {
+            throw new IllegalArgumentException("Sample count and size must be positive");
+        }
+
+        long bufferSize = Math.multiplyExact((long) maxSamples, maxSampleSize);
+        this.trainer = new ZstdDictTrainer((int) Math.min(bufferSize, MAX_SAMPLE_BUFFER_SIZE), dictionarySize);
+        this.output = output;
+        this.maxSamples = maxSamples;
+        this.maxSampleSize = maxSampleSize;
+    }
+
+    public void capture(ByteBuf batch) {
+        int count = this.samples.get();
+        if (count >= this.maxSamples || !this.samples.compareAndSet(count, count + 1)) {
+            return;
+        }
+
+        byte[] sample = ByteBufUtil.getBytes(batch, batch.readerIndex(), Math.min(batch.readableBytes(), this.maxSampleSize));
+        boolean added;
+        synchronized (this.trainer) {
+            added = this.trainer.addSample(sample);
+        }
+
+        // A full sample buffer ends the capture early
+        if ((count + 1 == this.maxSamples || !added) && this.training.compareAndSet(false, true)) {
+            this.samples.set(this.maxSamples);
+
+            Thread thread = new Thread(this::train, "ProxyTransport-DictTrainer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void train() {
+        try {
+            byte[] dictionary;
+            synchronized (this.trainer) {
+                dictionary = this.trainer.trainSamples();
+            }
+
+            Files.write(this.output, dictionary);
+            log.info("Trained Zstd dictionary with id {}, written to {}", new ZstdDictionary(dictionary).getId(), this.output);
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to train Zstd dictionary", e);
+        } finally {
+            current = null;
+        }
+    }
+
+    public static ZstdDictionaryTrainer getCurrent() {
+        return current;
+    }
+
+    public static void setCurrent(ZstdDictionaryTrainer trainer) {
+        current = trainer;
+    }
+}
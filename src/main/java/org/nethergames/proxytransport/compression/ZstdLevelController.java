@@ -0,0 +1,120 @@
+package org.nethergames.proxytransport.compression;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import org.nethergames.proxytransport.config.TransportConfig;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the Zstd compression level of an event loop at runtime.
+ * The level is lowered when compression gets too expensive or the event loop falls behind, and raised again
+ * when there is spare CPU or the outbound channels are backed up and bandwidth is the bottleneck.
+ */
+public class ZstdLevelController {
+    private static final Map<String, ZstdLevelController> CONTROLLERS = new ConcurrentHashMap<>();
+    private static final FastThreadLocal<ZstdLevelController> CURRENT = new FastThreadLocal<>() {
+        @Override
+        protected ZstdLevelController initialValue() {
+            ZstdLevelController controller = new ZstdLevelController(TransportConfig.get());
+            CONTROLLERS.put(Thread.currentThread().getName(), controller);
+            return controller;
+        }
+
+        @Override
+        protected void onRemoval(ZstdLevelController controller) {
+            CONTROLLERS.values().remove(controller);
+        }
+    };
+
+    private final int minLevel;
+    private final int maxLevel;
+    private final double maxNanosPerByte;
+    private final int backlogHigh;
+    private final int backlogLow;
+    private final long intervalNanos;
+
+    private volatile int level;
+    private volatile double nanosPerByte;
+    private long sampledNanos;
+    private long sampledBytes;
+    private int maxBacklog;
+    private boolean unwritable;
+    private long lastAdjustment = System.nanoTime();
+
+    private ZstdLevelController(TransportConfig config) {
+        this.minLevel = config.getZstdAdaptiveMinLevel();
+        this.maxLevel = config.getZstdAdaptiveMaxLevel();
+        this.maxNanosPerByte = config.getZstdAdaptiveMaxNanosPerByte();
+        this.backlogHigh = config.getZstdAdaptiveBacklogHigh();
+        this.backlogLow = config.getZstdAdaptiveBacklogLow();
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getZstdAdaptiveIntervalMillis());
+        this.level = Math.max(this.minLevel, Math.min(this.maxLevel, config.getZstdLevel()));
+    }
+
+    public static ZstdLevelController current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Get the current level of every event loop that compressed with Zstd, keyed by thread name.
+     */
+    public static Map<String, Integer> getLevels() {
+        Map<String, Integer> levels = new HashMap<>();
+        CONTROLLERS.forEach((thread, controller) -> levels.put(thread, controller.getLevel()));
+        return Collections.unmodifiableMap(levels);
+    }
+
+    public int getLevel() {
+        return this.level;
+    }
+
+    public double getNanosPerByte() {
+        return this.nanosPerByte;
+    }
+
+    public void record(ChannelHandlerContext ctx, int uncompressedBytes, long nanos) {
+        this.sampledNanos += nanos;
+        this.sampledBytes += uncompressedBytes;
+        this.unwritable |= !ctx.channel().isWritable();
+
+        EventExecutor executor = ctx.executor();
+        if (executor instanceof SingleThreadEventExecutor loop) {
+            this.maxBacklog = Math.max(this.maxBacklog, loop.pendingTasks());
+        }
+
+        long now = System.nanoTime();
+        if (now - this.lastAdjustment >= this.intervalNanos) {
+            this.adjust();
+            this.lastAdjustment = now;
+        }
+    }
+
+    private void adjust() {
+        if (this.sampledBytes == 0) {
+            return;
+        }
+
+        double nanosPerByte = (double) this.sampledNanos / this.sampledBytes;
+        this.nanosPerByte = nanosPerByte;
+
+        int level = this.level;
+        if (this.maxBacklog >= this.backlogHigh || nanosPerByte > this.maxNanosPerByte) {
+            level--; // CPU bound, trade ratio for speed
+        } else if (this.maxBacklog <= this.backlogLow && (this.unwritable || nanosPerByte < this.maxNanosPerByte / 2)) {
+            level++; // spare CPU, save bandwidth
+        }
+
+        this.level = Math.max(this.minLevel, Math.min(this.maxLevel, level == 0 ? (level > this.level ? 1 : -1) : level)); // level 0 means default (3) in Zstd
+        this.sampledNanos = 0;
+        this.sampledBytes = 0;
+        this.maxBacklog = 0;
+        this.unwritable = false;
+    }
+}
@@ -0,0 +1,55 @@
+package org.nethergames.proxytransport.config;
+
+import dev.waterdog.waterdogpe.utils.config.Configuration;
+import io.netty.incubator.codec.quic.QuicCongestionControlAlgorithm;
+import lombok.Getter;
+
+import java.util.Locale;
+
+/**
+ * QUIC transport parameters of a downstream server. Values under {@code quic.servers.<name>} override the defaults under {@code quic}.
+ */
+@Getter
+public class QuicSettings {
+    public static final QuicSettings DEFAULT = new QuicSettings();
+
+    private long maxIdleTimeoutMillis = 2000;
+    private long initialMaxData = 10000000;
+    private long initialMaxStreamDataBidirectionalLocal = 1000000;
+    private long initialMaxStreamDataBidirectionalRemote = 1000000;
+    private long initialMaxStreamsBidirectional = 100;
+    private int maxUdpPayloadSize = 1350;
+    private QuicCongestionControlAlgorithm congestionControl = QuicCongestionControlAlgorithm.CUBIC;
+    private boolean hystart = true;
+    private boolean earlyData = true;
+    private long sessionCacheSize = 1024;
+    private long sessionTimeoutSeconds = 3600;
+
+    private QuicSettings() {
+    }
+
+    public static QuicSettings load(Configuration config, String serverName) {
+        QuicSettings settings = new QuicSettings();
+        String server = "quic.servers." + serverName + ".";
+
+        settings.maxIdleTimeoutMillis = getLong(config, server, "max-idle-timeout-millis", settings.maxIdleTimeoutMillis);
+        settings.initialMaxData = getLong(config, server, "initial-max-data", settings.initialMaxData);
+        settings.initialMaxStreamDataBidirectionalLocal = getLong(config, server, "initial-max-stream-data-bidi-local", settings.initialMaxStreamDataBidirectionalLocal);
+        settings.initialMaxStreamDataBidirectionalRemote = getLong(config, server, "initial-max-stream-data-bidi-remote", settings.initialMaxStreamDataBidirectionalRemote);
+        settings.initialMaxStreamsBidirectional = getLong(config, server, "initial-max-streams-bidi", settings.initialMaxStreamsBidirectional);
+        settings.maxUdpPayloadSize = (int) getLong(config, server, "max-udp-payload-size", settings.maxUdpPayloadSize);
+        settings.hystart = config.getBoolean(server + "hystart", config.getBoolean("quic.hystart", settings.hystart));
+        settings.earlyData = config.getBoolean(server + "early-data", config.getBoolean("quic.early-data", settings.earlyData));
+        settings.sessionCacheSize = getLong(config, server, "session-cache-size", settings.sessionCacheSize);
+        settings.sessionTimeoutSeconds = getLong(config, server, "session-timeout-seconds", settings.sessionTimeoutSeconds);
+
+        String congestionControl = config.getString(server + "congestion-control", config.getString("quic.congestion-control", settings.congestionControl.name()));
+        settings.congestionControl = QuicCongestionControlAlgorithm.valueOf(congestionControl.toUpperCase(Locale.ROOT));
+
+        return settings;
+    }
+
+    private static long getLong(Configuration config, String server, String key, long defaultValue) {
+        return config.getLong(server + key, config.getLong("quic." + key, defaultValue));
+    }
+}
@@ -0,0 +1,181 @@
+package org.nethergames.proxytransport.config;
+
+import dev.waterdog.waterdogpe.utils.config.Configuration;
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.nethergames.proxytransport.impl.OpaquePassThrough;
+import org.nethergames.proxytransport.impl.TransportClientConnection.SupersededPolicy;
+import org.nethergames.proxytransport.integration.QuicTransportServerInfo.StreamAssignment;
+import org.nethergames.proxytransport.ratelimit.PacketRateLimiter;
+import org.nethergames.proxytransport.ratelimit.RateLimitRule;
+import org.nethergames.proxytransport.stream.TrafficClass;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+@Getter
+public class TransportConfig {
+    private static volatile TransportConfig instance = new TransportConfig();
+
+    @Getter(AccessLevel.NONE)
+    private Configuration config;
+
+    private String transportBackend = "auto";
+    private int transportThreads = 0;
+    private List<Integer> transportCpuAffinity = Collections.emptyList();
+    private boolean fusedFrameCodec = true;
+    private int maxFrameLength = 16 * 1024 * 1024;
+    private OpaquePassThrough opaquePassThrough = OpaquePassThrough.DISABLED;
+    private boolean coLocateDownstream = false;
+    private boolean writeCoalescing = false;
+    private int writeCoalescingWindowMicros = 0;
+    private int writeCoalescingMaxPendingFlushes = 64;
+
+    private int writeBufferLowWatermark = 32 * 1024;
+    private int writeBufferHighWatermark = 64 * 1024;
+    private boolean backpressurePauseUpstream = true;
+    private SupersededPolicy supersededPolicy = SupersededPolicy.NONE;
+    private Set<Integer> supersededPackets = Set.of(19); // MovePlayerPacket
+
+    private boolean tcpMultiplex = false;
+    private int tcpMultiplexConnections = 4;
+    private int tcpWarmConnections = 0;
+    private boolean tcpInfoLatency = true;
+    private boolean tcpControlFrames = false;
+
+    private int quicConnectionsPerServer = 1;
+    private StreamAssignment quicStreamAssignment = StreamAssignment.LEAST_LOADED;
+    private boolean quicWarmConnections = false;
+    private boolean quicTrafficClassStreams = false;
+    private List<TrafficClass> quicTrafficClasses = Collections.emptyList();
+
+    private int rateLimitPackets = 750;
+    private int rateLimitBurst = 750;
+    private List<RateLimitRule> rateLimitGroups = Collections.emptyList();
+
+    private int zstdLevel = -1;
+    private boolean zstdAdaptive = false;
+    private int zstdAdaptiveMinLevel = -5;
+    private int zstdAdaptiveMaxLevel = 6;
+    private double zstdAdaptiveMaxNanosPerByte = 4.0;
+    private int zstdAdaptiveBacklogHigh = 256;
+    private int zstdAdaptiveBacklogLow = 16;
+    private int zstdAdaptiveIntervalMillis = 1000;
+    private boolean zstdCache = false;
+    private long zstdCacheMaxSize = 64 * 1024 * 1024;
+    private int zstdCacheMinBatchSize = 1024;
+    private boolean zstdOffload = false;
+    private int zstdOffloadThreads = 0;
+    private int zstdOffloadMinBatchSize = 64 * 1024;
+    private int zstdOffloadQueueSize = 1024;
+    private int zstdMaxDecompressedSize = 16 * 1024 * 1024;
+    private boolean zstdDictionaryEnabled = false;
+    private String zstdDictionaryFile = "zstd.dict";
+    private boolean zstdDictionaryCapture = false;
+    private int zstdDictionaryCaptureSamples = 4000;
+    private int zstdDictionaryCaptureMaxSampleSize = 4096;
+    private int zstdDictionarySize = 112640;
+
+    private TransportConfig() {
+    }
+
+    public static TransportConfig get() {
+        return instance;
+    }
+
+    public QuicSettings getQuicSettings(String serverName) {
+        return this.config == null ? QuicSettings.DEFAULT : QuicSettings.load(this.config, serverName);
+    }
+
+    public PacketRateLimiter newRateLimiter() {
+        return new PacketRateLimiter(this.rateLimitPackets, this.rateLimitBurst, this.rateLimitGroups);
+    }
+
+    public static TransportConfig load(Configuration config) {
+        TransportConfig settings = new TransportConfig();
+        settings.config = config;
+
+        settings.transportBackend = config.getString("transport.backend", settings.transportBackend);
+        settings.transportThreads = config.getInt("transport.threads", settings.transportThreads);
+        List<?> cpuAffinity = config.getList("transport.cpu-affinity");
+        if (cpuAffinity != null) {
+            settings.transportCpuAffinity = cpuAffinity.stream()
+                    .map(cpu -> ((Number) cpu).intValue())
+                    .toList();
+        }
+        settings.fusedFrameCodec = config.getBoolean("transport.fused-frame-codec", settings.fusedFrameCodec);
+        settings.maxFrameLength = config.getInt("transport.max-frame-length", settings.maxFrameLength);
+        settings.opaquePassThrough = OpaquePassThrough.valueOf(config.getString("transport.opaque-pass-through", settings.opaquePassThrough.name()).toUpperCase(Locale.ROOT));
+        settings.coLocateDownstream = config.getBoolean("transport.co-locate-downstream", settings.coLocateDownstream);
+        settings.writeCoalescing = config.getBoolean("transport.write-coalescing.enabled", settings.writeCoalescing);
+        settings.writeCoalescingWindowMicros = config.getInt("transport.write-coalescing.window-micros", settings.writeCoalescingWindowMicros);
+        settings.writeCoalescingMaxPendingFlushes = config.getInt("transport.write-coalescing.max-pending-flushes", settings.writeCoalescingMaxPendingFlushes);
+
+        settings.writeBufferLowWatermark = config.getInt("backpressure.low-watermark", settings.writeBufferLowWatermark);
+        settings.writeBufferHighWatermark = config.getInt("backpressure.high-watermark", settings.writeBufferHighWatermark);
+        settings.backpressurePauseUpstream = config.getBoolean("backpressure.pause-upstream", settings.backpressurePauseUpstream);
+        settings.supersededPolicy = SupersededPolicy.valueOf(config.getString("backpressure.superseded-policy", settings.supersededPolicy.name()).toUpperCase(Locale.ROOT));
+        List<?> supersededPackets = config.getList("backpressure.superseded-packets");
+        if (supersededPackets != null) {
+            settings.supersededPackets = supersededPackets.stream()
+                    .map(id -> ((Number) id).intValue())
+                    .collect(Collectors.toUnmodifiableSet());
+        }
+
+        settings.tcpMultiplex = config.getBoolean("tcp.multiplex.enabled", settings.tcpMultiplex);
+        settings.tcpMultiplexConnections = config.getInt("tcp.multiplex.connections", settings.tcpMultiplexConnections);
+        settings.tcpWarmConnections = config.getInt("tcp.warm-connections", settings.tcpWarmConnections);
+        settings.tcpInfoLatency = config.getBoolean("tcp.latency.tcp-info", settings.tcpInfoLatency);
+        settings.tcpControlFrames = config.getBoolean("tcp.latency.control-frames", settings.tcpControlFrames);
+
+        settings.quicConnectionsPerServer = config.getInt("quic.connections-per-server", settings.quicConnectionsPerServer);
+        settings.quicWarmConnections = config.getBoolean("quic.warm-connections", settings.quicWarmConnections);
+        settings.quicStreamAssignment = StreamAssignment.valueOf(config.getString("quic.stream-assignment", settings.quicStreamAssignment.name()).toUpperCase(Locale.ROOT).replace('-', '_'));
+        settings.quicTrafficClassStreams = config.getBoolean("quic.traffic-classes.enabled", settings.quicTrafficClassStreams);
+        List<?> trafficClasses = config.getList("quic.traffic-classes.classes");
+        if (trafficClasses != null) {
+            settings.quicTrafficClasses = trafficClasses.stream()
+                    .map(trafficClass -> TrafficClass.fromMap((Map<?, ?>) trafficClass))
+                    .toList();
+        }
+
+        settings.rateLimitPackets = config.getInt("rate-limit.packets-per-second", settings.rateLimitPackets);
+        settings.rateLimitBurst = config.getInt("rate-limit.burst", settings.rateLimitBurst);
+        List<?> groups = config.getList("rate-limit.groups");
+        if (groups != null) {
+            settings.rateLimitGroups = groups.stream()
+                    .map(group -> RateLimitRule.fromMap((Map<?, ?>) group))
+                    .toList();
+        }
+
+        settings.zstdLevel = config.getInt("zstd.level", settings.zstdLevel);
+        settings.zstdAdaptive = config.getBoolean("zstd.adaptive.enabled", settings.zstdAdaptive);
+        settings.zstdAdaptiveMinLevel = config.getInt("zstd.adaptive.min-level", settings.zstdAdaptiveMinLevel);
+        settings.zstdAdaptiveMaxLevel = config.getInt("zstd.adaptive.max-level", settings.zstdAdaptiveMaxLevel);
+        settings.zstdAdaptiveMaxNanosPerByte = config.getDouble("zstd.adaptive.max-nanos-per-byte", settings.zstdAdaptiveMaxNanosPerByte);
+        settings.zstdAdaptiveBacklogHigh = config.getInt("zstd.adaptive.backlog-high", settings.zstdAdaptiveBacklogHigh);
+        settings.zstdAdaptiveBacklogLow = config.getInt("zstd.adaptive.backlog-low", settings.zstdAdaptiveBacklogLow);
+        settings.zstdAdaptiveIntervalMillis = config.getInt("zstd.adaptive.interval-millis", settings.zstdAdaptiveIntervalMillis);
+        settings.zstdCache = config.getBoolean("zstd.cache.enabled", settings.zstdCache);
+        settings.zstdCacheMaxSize = config.getLong("zstd.cache.max-size", settings.zstdCacheMaxSize);
+        settings.zstdCacheMinBatchSize = config.getInt("zstd.cache.min-batch-size", settings.zstdCacheMinBatchSize);
+        settings.zstdOffload = config.getBoolean("zstd.offload.enabled", settings.zstdOffload);
+        settings.zstdOffloadThreads = config.getInt("zstd.offload.threads", settings.zstdOffloadThreads);
+        settings.zstdOffloadMinBatchSize = config.getInt("zstd.offload.min-batch-size", settings.zstdOffloadMinBatchSize);
+        settings.zstdOffloadQueueSize = config.getInt("zstd.offload.queue-size", settings.zstdOffloadQueueSize);
+        settings.zstdMaxDecompressedSize = config.getInt("zstd.max-decompressed-size", settings.zstdMaxDecompressedSize);
+        settings.zstdDictionaryEnabled = config.getBoolean("zstd.dictionary.enabled", settings.zstdDictionaryEnabled);
+        settings.zstdDictionaryFile = config.getString("zstd.dictionary.file", settings.zstdDictionaryFile);
+        settings.zstdDictionaryCapture = config.getBoolean("zstd.dictionary.capture.enabled", settings.zstdDictionaryCapture);
+        settings.zstdDictionaryCaptureSamples = config.getInt("zstd.dictionary.capture.samples", settings.zstdDictionaryCaptureSamples);
+        settings.zstdDictionaryCaptureMaxSampleSize = config.getInt("zstd.dictionary.capture.max-sample-size", settings.zstdDictionaryCaptureMaxSampleSize);
+        settings.zstdDictionarySize = config.getInt("zstd.dictionary.capture.dictionary-size", settings.zstdDictionarySize);
+
+        instance = settings;
+        return settings;
+    }
+}
@@ -0,0 +1,18 @@
+package org.nethergames.proxytransport.impl;
+
+import io.netty.util.AttributeKey;
+
+/**
+ * Which clientbound batches of a session are forwarded to the player still compressed, skipping decompression,
+ * packet decoding and recompression. Only batches in a compression the client can read are forwarded this way.
+ */
+public enum OpaquePassThrough {
+    DISABLED,
+    /**
+     * Batches the downstream server prefixed with {@link #MARKER}, promising they contain nothing the proxy handles.
+     */
+    MARKED;
+
+    public static final AttributeKey<OpaquePassThrough> ATTRIBUTE = AttributeKey.valueOf("proxytransport-opaque-pass-through");
+    public static final byte MARKER = -16;
+}
@@ -10,8 +10,8 @@ import dev.waterdog.waterdogpe.network.connection.codec.packet.BedrockPacketCode
 import dev.waterdog.waterdogpe.network.serverinfo.ServerInfo;
 import dev.waterdog.waterdogpe.player.ProxiedPlayer;
 import io.netty.channel.*;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
 import io.netty.util.concurrent.Promise;
 import lombok.RequiredArgsConstructor;
 import org.cloudburstmc.netty.channel.raknet.RakChannel;
@@ -19,9 +19,17 @@ import org.cloudburstmc.netty.channel.raknet.config.RakChannelMetrics;
 import org.cloudburstmc.netty.channel.raknet.config.RakChannelOption;
 import org.cloudburstmc.protocol.bedrock.PacketDirection;
 import org.cloudburstmc.protocol.bedrock.netty.codec.compression.CompressionCodec;
+import org.cloudburstmc.protocol.bedrock.netty.codec.compression.CompressionStrategy;
+import org.nethergames.proxytransport.compression.CompressionCache;
 import org.nethergames.proxytransport.compression.FrameIdCodec;
 import org.nethergames.proxytransport.compression.ProxyTransportCompressionCodec;
+import org.nethergames.proxytransport.compression.TransportFrameCodec;
+import org.nethergames.proxytransport.compression.TransportFrameDecoder;
+import org.nethergames.proxytransport.config.TransportConfig;
 import org.nethergames.proxytransport.integration.CustomClientEventHandler;
+import org.nethergames.proxytransport.metrics.TransportMetrics;
+import org.nethergames.proxytransport.stream.TrafficClassRouter;
+import org.nethergames.proxytransport.utils.UpstreamEventLoops;
 
 import static dev.waterdog.waterdogpe.network.connection.codec.initializer.ProxiedSessionInitializer.*;
 
@@ -45,6 +53,8 @@ public class TransportChannelInitializer extends ChannelInitializer<Channel> {
         CompressionType compression = this.player.getProxy().getConfiguration().getCompression();
 
         channel.attr(PacketDirection.ATTRIBUTE).set(PacketDirection.SERVER_BOUND);
+        channel.attr(TransportMetrics.ATTRIBUTE).set(TransportMetrics.newConnection(this.serverInfo.getServerName()));
+        channel.attr(CompressionCache.UPSTREAM_CHANNEL).set(UpstreamEventLoops.getChannel(this.player));
 
         NetworkMetrics metrics = this.player.getProxy().getNetworkMetrics();
         if (metrics != null) {
@@ -55,18 +65,21 @@ public class TransportChannelInitializer extends ChannelInitializer<Channel> {
             channel.config().setOption(RakChannelOption.RAK_METRICS, rakMetrics);
         }
 
-        channel.pipeline()
-                .addLast(FRAME_DECODER, new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4))
-                .addLast(FRAME_ENCODER, new LengthFieldPrepender(4));
+        TransportConfig config = TransportConfig.get();
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(config.getWriteBufferLowWatermark(), config.getWriteBufferHighWatermark()));
+
+        initTransportPipeline(channel, getCompressionStrategy(compression, rakVersion, true), false);
 
         channel.pipeline()
-                .addLast(FrameIdCodec.NAME, new FrameIdCodec())
-                .addLast(CompressionCodec.NAME, new ProxyTransportCompressionCodec(getCompressionStrategy(compression, rakVersion, true), false))
                 .addLast(BedrockBatchDecoder.NAME, BATCH_DECODER)
                 .addLast(BedrockBatchEncoder.NAME, new BedrockBatchEncoder())
                 .addLast(BedrockPacketCodec.NAME, getPacketCodec(rakVersion))
                 .addLast(ClientPacketQueue.NAME, new ClientPacketQueue());
 
+        if (channel instanceof QuicStreamChannel && config.isQuicTrafficClassStreams() && !config.getQuicTrafficClasses().isEmpty()) {
+            channel.pipeline().addAfter(BedrockBatchEncoder.NAME, TrafficClassRouter.NAME, new TrafficClassRouter(config.getQuicTrafficClasses()));
+        }
+
         ClientConnection connection = this.createConnection(channel);
         if (connection instanceof ChannelHandler handler) { // For reference: This will take care of the packets received being handled.
             channel.pipeline().addLast(ClientConnection.NAME, handler);
@@ -81,6 +94,32 @@ public class TransportChannelInitializer extends ChannelInitializer<Channel> {
                 .addLast(new TransportChannelInitializer.ChannelActiveHandler(connection, this.promise));
     }
 
+    /**
+     * Add the handlers which frame and compress batches. They do not depend on the player, so the load generator
+     * drives the same pipeline without a proxy.
+     */
+    public static void initTransportPipeline(Channel channel, CompressionStrategy strategy, boolean prefixed) {
+        TransportConfig config = TransportConfig.get();
+        if (config.isWriteCoalescing()) {
+            channel.pipeline().addLast(WriteCoalescingHandler.NAME, new WriteCoalescingHandler(config.getWriteCoalescingWindowMicros(), config.getWriteCoalescingMaxPendingFlushes()));
+        }
+
+        if (config.isFusedFrameCodec()) {
+            channel.pipeline().addLast(TransportFrameCodec.NAME, new TransportFrameCodec(config.getMaxFrameLength()));
+        } else {
+            channel.pipeline()
+                    .addLast(FRAME_DECODER, new TransportFrameDecoder(config.getMaxFrameLength(), false))
+                    .addLast(FRAME_ENCODER, new LengthFieldPrepender(4))
+                    .addLast(FrameIdCodec.NAME, new FrameIdCodec());
+        }
+
+        if (config.isTcpControlFrames() && !(channel instanceof QuicStreamChannel)) {
+            channel.pipeline().addLast(TransportControlHandler.NAME, new TransportControlHandler());
+        }
+
+        channel.pipeline().addLast(CompressionCodec.NAME, new ProxyTransportCompressionCodec(strategy, prefixed));
+    }
+
     protected ClientConnection createConnection(Channel channel) {
         return new TransportClientConnection(player, serverInfo, channel);
     }
@@ -90,6 +129,13 @@ public class TransportChannelInitializer extends ChannelInitializer<Channel> {
         private final ClientConnection connection;
         private final Promise<ClientConnection> promise;
 
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            if (ctx.channel().isActive()) { // pre-warmed channels are connected before the pipeline is initialized
+                this.channelActive(ctx);
+            }
+        }
+
         @Override
         public void channelActive(ChannelHandlerContext ctx) {
             this.promise.trySuccess(this.connection);
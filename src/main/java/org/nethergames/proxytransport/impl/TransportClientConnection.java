@@ -10,8 +10,13 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.epoll.EpollTcpInfo;
 import io.netty.incubator.codec.quic.QuicConnectionPathStats;
 import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 import io.netty.util.concurrent.Future;
 import lombok.Getter;
 import lombok.NonNull;
@@ -26,7 +31,14 @@ import org.cloudburstmc.protocol.bedrock.packet.BedrockPacket;
 import org.cloudburstmc.protocol.bedrock.packet.NetworkStackLatencyPacket;
 import org.cloudburstmc.protocol.bedrock.packet.TickSyncPacket;
 import org.nethergames.proxytransport.compression.FrameIdCodec;
+import org.nethergames.proxytransport.compression.OpaqueBatch;
 import org.nethergames.proxytransport.compression.ProxyTransportCompressionCodec;
+import org.nethergames.proxytransport.compression.TransportFrameCodec;
+import org.nethergames.proxytransport.config.TransportConfig;
+import org.nethergames.proxytransport.metrics.TransportMetrics;
+import org.nethergames.proxytransport.ratelimit.PacketRateLimiter;
+import org.nethergames.proxytransport.stream.TrafficClassRouter;
+import org.nethergames.proxytransport.utils.UpstreamEventLoops;
 
 import javax.crypto.SecretKey;
 import java.util.ArrayList;
@@ -36,19 +48,24 @@ import java.util.ListIterator;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 @Log4j2(topic = "ClientConnection")
 public class TransportClientConnection extends BedrockClientConnection {
 
     private static final int PING_CYCLE_TIME = 2; // 2 seconds
-    private static final long MAX_UPSTREAM_PACKETS = 750;
+    private static final int NETWORK_STACK_LATENCY_ID = 115; // NetworkStackLatencyPacket id, unchanged across protocol versions
 
     private final AtomicBoolean activeChannelLock = new AtomicBoolean(false);
-    private final AtomicInteger packetSendingLimit = new AtomicInteger(0);
     private final AtomicBoolean packetSendingLock = new AtomicBoolean(false); // Lock packets from being sent to downstream servers.
 
+    @Getter
+    private final PacketRateLimiter rateLimiter;
+    @Getter
+    private final TransportMetrics metrics;
+
     private final Channel channel;
+    private final boolean inBandPings; // latency is measured with NetworkStackLatencyPackets, see collectStats
     private long lastPingTimestamp = -1;
     private long latency = 0; // Latency in microseconds
 
@@ -62,23 +79,83 @@ public class TransportClientConnection extends BedrockClientConnection {
 
     private final List<ScheduledFuture<?>> scheduledTasks = new ArrayList<>();
 
+    private final IntObjectMap<BedrockPacketWrapper> supersededPackets = new IntObjectHashMap<>(); // latest held back packet per id
+    private volatile boolean upstreamPaused = false;
+
     public TransportClientConnection(ProxiedPlayer player, ServerInfo serverInfo, Channel channel) {
         super(player, serverInfo, channel);
 
         this.channel = channel;
+        this.rateLimiter = TransportConfig.get().newRateLimiter();
+        TransportMetrics metrics = channel.attr(TransportMetrics.ATTRIBUTE).get();
+        this.metrics = metrics != null ? metrics : TransportMetrics.newConnection(serverInfo.getServerName());
         this.channel.closeFuture().addListener(future -> cleanActiveChannels());
 
+        TransportControlHandler controlHandler = channel.pipeline().get(TransportControlHandler.class);
+        if (controlHandler != null) {
+            controlHandler.setPongListener(this::onControlPong);
+        }
+        this.inBandPings = !(channel instanceof QuicStreamChannel) && controlHandler == null
+                && !(TransportConfig.get().isTcpInfoLatency() && channel instanceof EpollSocketChannel);
+
         scheduledTasks.add(channel.eventLoop().scheduleAtFixedRate(this::collectStats, PING_CYCLE_TIME, PING_CYCLE_TIME, TimeUnit.SECONDS));
-        scheduledTasks.add(channel.eventLoop().scheduleAtFixedRate(() -> packetSendingLimit.set(0), 1, 1, TimeUnit.SECONDS));
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         scheduledTasks.forEach(task -> cleanActiveChannels());
+        this.setUpstreamReading(true);
+        this.releaseSuperseded();
 
         super.channelInactive(ctx);
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        boolean writable = this.isWritable();
+        if (TransportConfig.get().isBackpressurePauseUpstream()) {
+            this.setUpstreamReading(writable);
+        }
+
+        if (writable) {
+            this.flushSuperseded();
+        }
+
+        super.channelWritabilityChanged(ctx);
+    }
+
+    /**
+     * Whether the session is below its high watermark, on every traffic class stream if it was split into several.
+     */
+    private boolean isWritable() {
+        if (this.channel.pipeline().get(TrafficClassRouter.NAME) instanceof TrafficClassRouter router && !router.isWritable()) {
+            return false;
+        }
+
+        return this.channel.isWritable();
+    }
+
+    /**
+     * Pause or resume reading from the player while this downstream channel is backed up.
+     */
+    private void setUpstreamReading(boolean reading) {
+        if (this.upstreamPaused != reading) {
+            return; // already in the requested state
+        }
+
+        if (!reading && getPlayer().getDownstreamConnection() != this) {
+            return; // only the current downstream connection may stall the player
+        }
+
+        Channel upstream = UpstreamEventLoops.getChannel(getPlayer());
+        if (upstream == null) {
+            return;
+        }
+
+        this.upstreamPaused = !reading;
+        upstream.config().setAutoRead(reading);
+    }
+
     public void cleanActiveChannels() {
         if (!activeChannelLock.compareAndSet(false, true)) {
             return;
@@ -90,8 +167,20 @@ public class TransportClientConnection extends BedrockClientConnection {
         }
     }
 
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof OpaqueBatch batch) {
+            this.forwardOpaque(batch);
+            return;
+        }
+
+        super.channelRead(ctx, msg);
+    }
+
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, BedrockBatchWrapper batch) {
+        this.updateOpaquePassThrough();
+
         if (getPacketHandler() instanceof ProxyBatchBridge) {
             onBedrockBatch(batch);
         }
@@ -99,57 +188,154 @@ public class TransportClientConnection extends BedrockClientConnection {
         super.channelRead0(ctx, batch);
     }
 
+    /**
+     * Decide whether marked batches may skip decoding. Only bridged sessions of the player's current server qualify.
+     */
+    private void updateOpaquePassThrough() {
+        OpaquePassThrough configured = TransportConfig.get().getOpaquePassThrough();
+        boolean bridged = getPacketHandler() instanceof ProxyBatchBridge && getPlayer().getDownstreamConnection() == this;
+        this.channel.attr(OpaquePassThrough.ATTRIBUTE).set(bridged ? configured : OpaquePassThrough.DISABLED);
+    }
+
+    private void forwardOpaque(OpaqueBatch batch) {
+        if (getPlayer().getConnection() == null || !(getPacketHandler() instanceof ProxyBatchBridge) || getPlayer().getDownstreamConnection() != this) {
+            // The session stopped bridging since the batch was decoded, hand it to the compression codec again to be decoded fully
+            this.channel.attr(OpaquePassThrough.ATTRIBUTE).set(OpaquePassThrough.DISABLED);
+
+            ChannelHandlerContext frameContext = this.channel.pipeline().context(TransportFrameCodec.NAME);
+            if (frameContext == null) {
+                frameContext = this.channel.pipeline().context(FrameIdCodec.NAME);
+            }
+            frameContext.fireChannelRead(BedrockBatchWrapper.newInstance(batch.content().retain(), null));
+            batch.release();
+            return;
+        }
+
+        BedrockBatchWrapper wrapper = BedrockBatchWrapper.newInstance(batch.content().retain(), null);
+        wrapper.setAlgorithm(batch.getAlgorithm());
+        batch.release();
+
+        getPlayer().getConnection().sendPacket(wrapper); // the bridge's send path, so batches stay in order
+    }
+
     private void onBedrockBatch(@NonNull BedrockBatchWrapper batch) {
+        // Only scan batches when latency comes from in-band pings, not from QUIC, TCP_INFO or control frames.
+        // Every response is removed, also late ones arriving after a newer ping was sent.
+        if (this.inBandPings && removePingResponse(batch, this::decodePacket) && this.lastPingTimestamp != -1) {
+            this.latency = (System.nanoTime() - this.lastPingTimestamp) / 1000;
+            this.lastPingTimestamp = -1;
+            this.metrics.recordRtt(this.latency);
+            this.broadcastPing();
+        }
+    }
+
+    /**
+     * Remove the responses to our latency pings from the batch. Only packets with the id of the ping are decoded.
+     *
+     * @return true if a response was removed
+     */
+    static boolean removePingResponse(BedrockBatchWrapper batch, Consumer<BedrockPacketWrapper> decoder) {
+        boolean found = false;
+
         ListIterator<BedrockPacketWrapper> iterator = batch.getPackets().listIterator();
         while (iterator.hasNext()) {
             BedrockPacketWrapper wrapper = iterator.next();
             if (wrapper.getPacket() == null) {
-                this.decodePacket(wrapper);
+                if (wrapper.getPacketId() != NETWORK_STACK_LATENCY_ID) {
+                    continue; // only peek at the header, the packet keeps its encoded buffer
+                }
+
+                decoder.accept(wrapper);
             }
 
             if (wrapper.getPacket() instanceof NetworkStackLatencyPacket packet && packet.getTimestamp() == 0) {
                 iterator.remove(); // remove from batch
                 wrapper.release(); // release
                 batch.modify();
-
-                if (this.lastPingTimestamp != -1) {
-                    this.latency = (System.nanoTime() - this.lastPingTimestamp) / 1000;
-                    this.broadcastPing();
-                }
+                found = true;
             }
         }
+
+        return found;
     }
 
-    private boolean increaseRateLimit(int value) {
-        packetSendingLimit.set(this.packetSendingLimit.get() + value);
+    private boolean acquireRateLimit(int tokens) {
+        if (this.packetSendingLock.get()) {
+            return false;
+        }
 
-        if (packetSendingLimit.get() >= MAX_UPSTREAM_PACKETS) {
-            if (packetSendingLock.compareAndSet(false, true)) {
-                getPlayer().getLogger().warning(getPlayer().getName() + " sent too many packets (" + packetSendingLimit.get() + "/s), disconnecting.");
-                getPlayer().getConnection().disconnect("§cToo many packets!");
-            }
-        } else return !packetSendingLock.get();
+        if (this.rateLimiter.tryAcquire(tokens)) {
+            return true;
+        }
 
+        if (packetSendingLock.compareAndSet(false, true)) {
+            getPlayer().getLogger().warning(getPlayer().getName() + " sent too many packets (over " + TransportConfig.get().getRateLimitPackets() + "/s), disconnecting.");
+            getPlayer().getConnection().disconnect("§cToo many packets!");
+        }
         return false;
     }
 
+    private boolean acquireRateLimit(BedrockPacket packet) {
+        if (!this.rateLimiter.hasGroups()) {
+            return this.acquireRateLimit(1);
+        }
+
+        int packetId = this.getPacketId(packet);
+        return this.rateLimiter.tryAcquireGroup(packetId) && this.acquireRateLimit(this.rateLimiter.getWeight(packetId));
+    }
+
     @Override
     public void sendPacket(BedrockPacket packet) {
-        if (this.increaseRateLimit(1)) {
+        if (this.acquireRateLimit(packet)) {
             super.sendPacket(packet);
         }
     }
 
     @Override
     public void sendPacketImmediately(BedrockPacket packet) {
-        if (this.increaseRateLimit(1)) {
+        if (this.acquireRateLimit(packet)) {
             super.sendPacketImmediately(packet);
         }
     }
 
     @Override
     public void sendPacket(BedrockBatchWrapper wrapper) {
-        if (this.increaseRateLimit(wrapper.getPackets().size())) {
+        if (!this.isWritable() && TransportConfig.get().getSupersededPolicy() != SupersededPolicy.NONE) {
+            this.removeSuperseded(wrapper);
+
+            if (wrapper.getPackets().isEmpty()) {
+                wrapper.release();
+                return;
+            }
+        } else {
+            this.prependSuperseded(wrapper);
+        }
+
+        int tokens = wrapper.getPackets().size();
+        if (this.rateLimiter.hasGroups()) {
+            tokens = 0;
+
+            ListIterator<BedrockPacketWrapper> iterator = wrapper.getPackets().listIterator();
+            while (iterator.hasNext()) {
+                BedrockPacketWrapper packet = iterator.next();
+                int packetId = packet.getPacket() == null ? packet.getPacketId() : this.getPacketId(packet.getPacket());
+                if (!this.rateLimiter.tryAcquireGroup(packetId)) {
+                    iterator.remove(); // over the budget of its group, drop only this packet
+                    packet.release();
+                    wrapper.modify();
+                    continue;
+                }
+
+                tokens += this.rateLimiter.getWeight(packetId);
+            }
+
+            if (wrapper.getPackets().isEmpty()) {
+                wrapper.release();
+                return;
+            }
+        }
+
+        if (this.acquireRateLimit(tokens)) {
             super.sendPacket(wrapper);
             return;
         }
@@ -157,6 +343,75 @@ public class TransportClientConnection extends BedrockClientConnection {
         wrapper.release();
     }
 
+    /**
+     * Take packets which are superseded by newer ones, like movement, out of a batch sent while the channel is backed up.
+     * They are either dropped or only the latest of each id is kept and sent once the channel is writable again, in front
+     * of the next batch. Kept packets therefore arrive after the rest of the batches written while backed up.
+     */
+    private void removeSuperseded(BedrockBatchWrapper wrapper) {
+        TransportConfig config = TransportConfig.get();
+
+        ListIterator<BedrockPacketWrapper> iterator = wrapper.getPackets().listIterator();
+        while (iterator.hasNext()) {
+            BedrockPacketWrapper packet = iterator.next();
+            if (!config.getSupersededPackets().contains(packet.getPacketId())) {
+                continue;
+            }
+
+            iterator.remove();
+            wrapper.modify();
+
+            if (config.getSupersededPolicy() == SupersededPolicy.COALESCE) {
+                BedrockPacketWrapper previous;
+                synchronized (this.supersededPackets) {
+                    previous = this.supersededPackets.put(packet.getPacketId(), packet);
+                }
+
+                if (previous != null) {
+                    previous.release();
+                }
+            } else {
+                packet.release();
+            }
+        }
+    }
+
+    private void prependSuperseded(BedrockBatchWrapper wrapper) {
+        synchronized (this.supersededPackets) {
+            if (this.supersededPackets.isEmpty()) {
+                return;
+            }
+
+            wrapper.getPackets().addAll(0, this.supersededPackets.values());
+            this.supersededPackets.clear();
+        }
+
+        wrapper.modify();
+    }
+
+    private void flushSuperseded() {
+        BedrockBatchWrapper batch;
+        synchronized (this.supersededPackets) {
+            if (this.supersededPackets.isEmpty()) {
+                return;
+            }
+
+            batch = BedrockBatchWrapper.newInstance();
+            batch.getPackets().addAll(this.supersededPackets.values());
+            this.supersededPackets.clear();
+        }
+
+        batch.modify();
+        this.sendPacket(batch);
+    }
+
+    private void releaseSuperseded() {
+        synchronized (this.supersededPackets) {
+            this.supersededPackets.values().forEach(BedrockPacketWrapper::release);
+            this.supersededPackets.clear();
+        }
+    }
+
     @Override
     public void setCompressionStrategy(CompressionStrategy strategy) {
         super.setCompressionStrategy(strategy);
@@ -164,10 +419,15 @@ public class TransportClientConnection extends BedrockClientConnection {
         boolean needsPrefix = this.getPlayer().getProtocol().isAfterOrEqual(ProtocolVersion.MINECRAFT_PE_1_20_60);
         ChannelHandler handler = this.channel.pipeline().get(CompressionCodec.NAME);
         if (handler == null) {
-            this.channel.pipeline().addAfter(FrameIdCodec.NAME, CompressionCodec.NAME, new ProxyTransportCompressionCodec(strategy, needsPrefix));
+            String frameCodec = this.channel.pipeline().get(TransportFrameCodec.NAME) != null ? TransportFrameCodec.NAME : FrameIdCodec.NAME;
+            this.channel.pipeline().addAfter(frameCodec, CompressionCodec.NAME, new ProxyTransportCompressionCodec(strategy, needsPrefix));
         } else {
             this.channel.pipeline().replace(CompressionCodec.NAME, CompressionCodec.NAME, new ProxyTransportCompressionCodec(strategy, needsPrefix));
         }
+
+        if (this.channel.pipeline().get(TrafficClassRouter.NAME) instanceof TrafficClassRouter router) {
+            router.setCompressionStrategy(strategy, needsPrefix);
+        }
     }
 
     @Override
@@ -208,28 +468,65 @@ public class TransportClientConnection extends BedrockClientConnection {
     public void collectStats() {
         var connection = getPlayer().getDownstreamConnection();
         if (connection instanceof TransportClientConnection && connection.getServerInfo().getServerName().equalsIgnoreCase(getServerInfo().getServerName())) {
+            ChannelOutboundBuffer outboundBuffer = this.channel.unsafe().outboundBuffer();
+            this.metrics.recordOutboundBuffer(outboundBuffer != null ? outboundBuffer.totalPendingWriteBytes() : 0);
+
             if (this.channel instanceof QuicStreamChannel quicChannel) {
                 quicChannel.parent().collectPathStats(0).addListener((Future<QuicConnectionPathStats> quicChannelFuture) -> {
                     if (quicChannelFuture.isSuccess()) {
                         QuicConnectionPathStats quicStats = quicChannelFuture.getNow();
 
                         this.latency = quicStats.rtt() / 1000; // convert to nanoseconds to microsecond
+                        this.metrics.recordRtt(this.latency);
                         this.setLostPercentage(quicStats.lost(), quicStats.sent());
                         this.broadcastPing();
                     }
                 });
-            } else {
+            } else if (this.inBandPings) {
                 NetworkStackLatencyPacket packet = new NetworkStackLatencyPacket();
                 packet.setTimestamp(0L);
                 packet.setFromServer(true);
 
-                sendPacket(packet);
+                sendPacketImmediately(packet);
+                this.flushImmediately(); // the ping must not wait in the write coalescing window
 
                 this.lastPingTimestamp = System.nanoTime();
+            } else if (TransportConfig.get().isTcpInfoLatency() && this.channel instanceof EpollSocketChannel epollChannel) {
+                this.collectTcpInfo(epollChannel);
+            } else if (this.channel.pipeline().get(TransportControlHandler.class) instanceof TransportControlHandler controlHandler) {
+                controlHandler.ping();
             }
         }
     }
 
+    /**
+     * Read the smoothed RTT and retransmissions the kernel keeps for the socket. TCP_INFO has no count of sent segments,
+     * so it is estimated from the bytes written and the MSS.
+     */
+    private void collectTcpInfo(EpollSocketChannel epollChannel) {
+        EpollTcpInfo tcpInfo = epollChannel.tcpInfo();
+
+        this.latency = tcpInfo.rtt(); // already in microseconds
+        this.metrics.recordRtt(this.latency);
+
+        long mss = Math.max(1, tcpInfo.sndMss());
+        long sentSegments = (this.metrics.getBytesOut().sum() + mss - 1) / mss;
+        this.setLostPercentage(tcpInfo.totalRetrans(), Math.max(sentSegments, tcpInfo.totalRetrans()));
+        this.broadcastPing();
+    }
+
+    private void onControlPong(long rttNanos) {
+        this.latency = rttNanos / 1000;
+        this.metrics.recordRtt(this.latency);
+        this.broadcastPing();
+    }
+
+    private void flushImmediately() {
+        if (this.channel.pipeline().get(WriteCoalescingHandler.NAME) instanceof WriteCoalescingHandler handler) {
+            handler.flushNow();
+        }
+    }
+
     private void broadcastPing() {
         TickSyncPacket latencyPacket = new TickSyncPacket();
         latencyPacket.setRequestTimestamp(getPlayer().getPing());
@@ -238,6 +535,12 @@ public class TransportClientConnection extends BedrockClientConnection {
         sendPacket(latencyPacket);
     }
 
+    private int getPacketId(BedrockPacket packet) {
+        BedrockCodec codec = channel.pipeline().get(BedrockPacketCodec.class).getCodec();
+        var definition = codec.getPacketDefinition(packet.getClass());
+        return definition == null ? -1 : definition.getId();
+    }
+
     private void decodePacket(BedrockPacketWrapper wrapper) {
         BedrockCodec codec = channel.pipeline().get(BedrockPacketCodec.class).getCodec();
         BedrockCodecHelper helper = channel.pipeline().get(BedrockPacketCodec.class).getHelper();
@@ -253,4 +556,10 @@ public class TransportClientConnection extends BedrockClientConnection {
             msg.release();
         }
     }
+
+    public enum SupersededPolicy {
+        NONE,
+        DROP,
+        COALESCE
+    }
 }
@@ -0,0 +1,91 @@
+package org.nethergames.proxytransport.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import lombok.Setter;
+import org.cloudburstmc.protocol.bedrock.netty.BedrockBatchWrapper;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Answers and sends transport level ping frames, which are exchanged below the compression codec so they measure
+ * the connection rather than the packet handling of the downstream server.
+ * <p>
+ * A control frame starts with the header {@link #CONTROL_HEADER} and the type. Ping and pong frames carry a timestamp
+ * in nanoseconds chosen by the sender of the ping, which the pong echoes back.
+ */
+public class TransportControlHandler extends ChannelDuplexHandler {
+    public static final String NAME = "transport-control";
+
+    public static final byte CONTROL_HEADER = (byte) 0xE0;
+    public static final byte PING = 0;
+    public static final byte PONG = 1;
+    /**
+     * Sent by the proxy as the first frame of an additional QUIC stream, followed by the id of the session's primary
+     * stream and the index of the traffic class the stream carries.
+     */
+    public static final byte BIND = 2;
+    private static final int FRAME_LENGTH = 10;
+
+    private ChannelHandlerContext ctx;
+    /**
+     * Called with the round trip time in nanoseconds for every pong answering one of our pings.
+     */
+    @Setter
+    private LongConsumer pongListener;
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof BedrockBatchWrapper batch) || !isControlFrame(batch.getCompressed())) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        try {
+            ByteBuf frame = batch.getCompressed();
+            byte type = frame.getByte(frame.readerIndex() + 1);
+            long timestamp = frame.getLong(frame.readerIndex() + 2);
+
+            if (type == PING) {
+                this.write(PONG, timestamp);
+                ctx.flush();
+            } else if (type == PONG && this.pongListener != null) {
+                this.pongListener.accept(System.nanoTime() - timestamp);
+            }
+        } finally {
+            batch.release();
+        }
+    }
+
+    /**
+     * Send a ping and flush it right away.
+     */
+    public void ping() {
+        this.write(PING, System.nanoTime());
+        this.ctx.flush();
+    }
+
+    private void write(byte type, long timestamp) {
+        ByteBuf frame = this.ctx.alloc().ioBuffer(FRAME_LENGTH);
+        frame.writeByte(CONTROL_HEADER).writeByte(type).writeLong(timestamp);
+        this.ctx.write(frame, this.ctx.voidPromise());
+    }
+
+    /**
+     * Create the frame binding an additional stream to the session of the primary stream.
+     */
+    public static ByteBuf newBindFrame(ByteBufAllocator alloc, long primaryStreamId, int trafficClass) {
+        return alloc.ioBuffer(11).writeByte(CONTROL_HEADER).writeByte(BIND).writeLong(primaryStreamId).writeByte(trafficClass);
+    }
+
+    private static boolean isControlFrame(ByteBuf frame) {
+        return frame != null && frame.readableBytes() == FRAME_LENGTH && frame.getByte(frame.readerIndex()) == CONTROL_HEADER;
+    }
+}
@@ -0,0 +1,110 @@
+package org.nethergames.proxytransport.impl;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delays flushes on a downstream channel, so frames written within one event loop iteration (or a short window) leave in a single
+ * gathering write or QUIC send. Latency critical frames can bypass the delay with {@link #flushNow()}.
+ */
+public class WriteCoalescingHandler extends ChannelDuplexHandler {
+    public static final String NAME = "write-coalescing";
+
+    private final long windowNanos;
+    private final int maxPendingFlushes;
+    private final Runnable flushTask = this::scheduledFlush;
+
+    private ChannelHandlerContext ctx;
+    private int pendingFlushes;
+    private boolean flushScheduled;
+    private ScheduledFuture<?> scheduledFuture;
+
+    /**
+     * @param windowMicros      how long flushes are held back, 0 to only coalesce flushes of the current event loop iteration
+     * @param maxPendingFlushes number of held back flushes after which the channel is flushed right away
+     */
+    public WriteCoalescingHandler(long windowMicros, int maxPendingFlushes) {
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxPendingFlushes = maxPendingFlushes;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        this.flushPending();
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        if (++this.pendingFlushes >= this.maxPendingFlushes || !ctx.channel().isWritable()) {
+            this.flushPending();
+            return;
+        }
+
+        if (!this.flushScheduled) {
+            this.flushScheduled = true;
+            if (this.windowNanos <= 0) {
+                ctx.executor().execute(this.flushTask); // runs after the tasks already queued in this iteration
+            } else {
+                this.scheduledFuture = ctx.executor().schedule(this.flushTask, this.windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (!ctx.channel().isWritable()) {
+            this.flushPending();
+        }
+
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        this.flushPending();
+        super.close(ctx, promise);
+    }
+
+    /**
+     * Flush everything written so far without waiting for the coalescing window.
+     */
+    public void flushNow() {
+        if (this.ctx == null) {
+            return;
+        }
+
+        if (this.ctx.executor().inEventLoop()) {
+            this.flushPending();
+        } else {
+            this.ctx.executor().execute(this::flushPending);
+        }
+    }
+
+    private void scheduledFlush() {
+        this.flushScheduled = false;
+        this.scheduledFuture = null;
+        this.flushPending();
+    }
+
+    private void flushPending() {
+        if (this.scheduledFuture != null) {
+            this.scheduledFuture.cancel(false);
+            this.scheduledFuture = null;
+            this.flushScheduled = false;
+        }
+
+        if (this.pendingFlushes > 0) {
+            this.pendingFlushes = 0;
+            this.ctx.flush();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.nethergames.proxytransport.integration;
 
+import dev.waterdog.waterdogpe.ProxyServer;
 import dev.waterdog.waterdogpe.logger.MainLogger;
 import dev.waterdog.waterdogpe.network.connection.client.ClientConnection;
 import dev.waterdog.waterdogpe.network.serverinfo.ServerInfo;
@@ -7,39 +8,66 @@ import dev.waterdog.waterdogpe.network.serverinfo.ServerInfoType;
 import dev.waterdog.waterdogpe.player.ProxiedPlayer;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.epoll.Epoll;
-import io.netty.channel.epoll.EpollDatagramChannel;
-import io.netty.channel.epoll.EpollEventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
-import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
 import io.netty.incubator.codec.quic.*;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.Promise;
-import net.jodah.expiringmap.internal.NamedThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.nethergames.proxytransport.config.QuicSettings;
+import org.nethergames.proxytransport.config.TransportConfig;
 import org.nethergames.proxytransport.impl.TransportChannelInitializer;
+import org.nethergames.proxytransport.utils.TransportBackend;
+import org.nethergames.proxytransport.utils.TransportEventLoops;
+import org.nethergames.proxytransport.utils.UpstreamEventLoops;
 
 import java.net.InetSocketAddress;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class QuicTransportServerInfo extends ServerInfo {
-    public static final int availableCPU = Runtime.getRuntime().availableProcessors();
-    public static final ThreadFactory downstreamThreadFactory = new NamedThreadFactory("QUIC-Downstream %s");
-    public static final EventLoopGroup downstreamLoopGroup = Epoll.isAvailable() ? new EpollEventLoopGroup(availableCPU, downstreamThreadFactory) : new NioEventLoopGroup(availableCPU, downstreamThreadFactory);
-
     public static final String TYPE_IDENT = "quic";
     public static final ServerInfoType TYPE = ServerInfoType.builder()
             .identifier(TYPE_IDENT)
             .serverInfoFactory(QuicTransportServerInfo::new)
             .register();
 
-    private final ConcurrentHashMap<InetSocketAddress, Future<QuicChannel>> serverConnections = new ConcurrentHashMap<>();
+    private static final long WARM_UP_RETRY = 5; // seconds
+    private static final long KEEP_ALIVE_MIN_INTERVAL = 100; // milliseconds
+
+    private final ConcurrentHashMap<ConnectionSlot, Future<QuicChannel>> serverConnections = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ConnectionSlot, AtomicInteger> streamCounts = new ConcurrentHashMap<>();
+    private volatile QuicSettings settings;
+    private volatile QuicSslContext sslContext;
 
     public QuicTransportServerInfo(String serverName, InetSocketAddress address, InetSocketAddress publicAddress) {
         super(serverName, address, publicAddress);
+
+        if (TransportConfig.get().isQuicWarmConnections()) {
+            TransportEventLoops.get().execute(this::warmUp);
+        }
+    }
+
+    /**
+     * Establish every connection of the pool ahead of time, so the first player does not wait for the QUIC handshake.
+     */
+    private void warmUp() {
+        int poolSize = Math.max(1, TransportConfig.get().getQuicConnectionsPerServer());
+        for (int index = 0; index < poolSize; index++) {
+            this.createServerConnection(TransportEventLoops.get(), ProxyServer.getInstance().getLogger(), ConnectionSlot.of(this.getAddress(), index));
+        }
+    }
+
+    /**
+     * Reconnect a pool slot whose connection closed or failed, the other slots are left alone.
+     */
+    private void scheduleWarmUp(ConnectionSlot slot) {
+        if (slot.index() >= 0 && TransportConfig.get().isQuicWarmConnections()) {
+            TransportEventLoops.get().schedule(() -> this.createServerConnection(TransportEventLoops.get(), ProxyServer.getInstance().getLogger(), slot), WARM_UP_RETRY, TimeUnit.SECONDS);
+        }
     }
 
     @Override
@@ -49,16 +77,22 @@ public class QuicTransportServerInfo extends ServerInfo {
 
     @Override
     public Future<ClientConnection> createConnection(ProxiedPlayer proxiedPlayer) {
-        EventLoop eventLoop = proxiedPlayer.getProxy().getWorkerEventLoopGroup().next();
+        EventLoop upstreamLoop = TransportConfig.get().isCoLocateDownstream() ? UpstreamEventLoops.getEventLoop(proxiedPlayer) : null;
+        EventLoop eventLoop = upstreamLoop != null ? upstreamLoop : proxiedPlayer.getProxy().getWorkerEventLoopGroup().next();
         Promise<ClientConnection> promise = eventLoop.newPromise();
 
-        this.createServerConnection(eventLoop, proxiedPlayer.getLogger(), this.getAddress()).addListener((Future<QuicChannel> future) -> {
+        ConnectionSlot slot = upstreamLoop != null ? new ConnectionSlot(this.getAddress(), -1, upstreamLoop) : this.selectSlot(proxiedPlayer, this.getAddress());
+        this.createServerConnection(eventLoop, proxiedPlayer.getLogger(), slot).addListener((Future<QuicChannel> future) -> {
             if (future.isSuccess()) {
                 proxiedPlayer.getLogger().debug("Creating stream for " + this.getServerName() + " server");
                 QuicChannel quicChannel = future.getNow();
 
                 quicChannel.createStream(QuicStreamType.BIDIRECTIONAL, new TransportChannelInitializer(proxiedPlayer, this, promise)).addListener((Future<QuicStreamChannel> streamFuture) -> {
-                    if (!streamFuture.isSuccess()) {
+                    if (streamFuture.isSuccess()) {
+                        AtomicInteger streams = this.streamCounts.computeIfAbsent(slot, s -> new AtomicInteger());
+                        streams.incrementAndGet();
+                        streamFuture.getNow().closeFuture().addListener(f -> streams.decrementAndGet());
+                    } else {
                         promise.tryFailure(streamFuture.cause());
                         quicChannel.close();
                     }
@@ -71,33 +105,104 @@ public class QuicTransportServerInfo extends ServerInfo {
         return promise;
     }
 
-    private Future<QuicChannel> createServerConnection(EventLoopGroup eventLoopGroup, MainLogger logger, InetSocketAddress address) {
+    private QuicSettings getSettings() {
+        QuicSettings settings = this.settings;
+        if (settings == null) {
+            this.settings = settings = TransportConfig.get().getQuicSettings(this.getServerName());
+        }
+
+        return settings;
+    }
+
+    /**
+     * The SSL context is shared by all connections of this server, so cached session tickets can be used to resume them.
+     */
+    private QuicSslContext getSslContext() {
+        QuicSslContext sslContext = this.sslContext;
+        if (sslContext == null) {
+            synchronized (this) {
+                if ((sslContext = this.sslContext) == null) {
+                    QuicSettings settings = this.getSettings();
+                    this.sslContext = sslContext = QuicSslContextBuilder.forClient()
+                            .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                            .applicationProtocols("ng")
+                            .earlyData(settings.isEarlyData())
+                            .sessionCacheSize(settings.getSessionCacheSize())
+                            .sessionTimeout(settings.getSessionTimeoutSeconds())
+                            .build();
+                }
+            }
+        }
+
+        return sslContext;
+    }
+
+    /**
+     * Pick the pool slot for a new stream, either the one carrying the fewest streams or one derived from the player's id.
+     */
+    private ConnectionSlot selectSlot(ProxiedPlayer player, InetSocketAddress address) {
+        TransportConfig config = TransportConfig.get();
+        int poolSize = Math.max(1, config.getQuicConnectionsPerServer());
+        if (poolSize == 1) {
+            return ConnectionSlot.of(address, 0);
+        }
+
+        if (config.getQuicStreamAssignment() == StreamAssignment.PLAYER_HASH) {
+            return ConnectionSlot.of(address, Math.floorMod(player.getUniqueId().hashCode(), poolSize));
+        }
+
+        int selected = 0;
+        int selectedStreams = Integer.MAX_VALUE;
+        for (int index = 0; index < poolSize; index++) {
+            AtomicInteger streams = this.streamCounts.get(ConnectionSlot.of(address, index));
+            int count = streams == null ? 0 : streams.get();
+            if (count < selectedStreams) {
+                selected = index;
+                selectedStreams = count;
+            }
+        }
+
+        return ConnectionSlot.of(address, selected);
+    }
+
+    private Future<QuicChannel> createServerConnection(EventLoopGroup eventLoopGroup, MainLogger logger, ConnectionSlot slot) {
         EventLoop eventLoop = eventLoopGroup.next();
+        InetSocketAddress address = slot.address();
 
-        if (this.serverConnections.containsKey(address)) {
-            logger.info("Reusing connection to " + address + " for " + this.getServerName() + " server");
-            return this.serverConnections.get(address);
+        Future<QuicChannel> existing = this.serverConnections.get(slot);
+        if (existing != null) {
+            logger.debug("Reusing connection " + slot.index() + " to " + address + " for " + this.getServerName() + " server");
+            return existing;
         }
 
-        logger.info("Creating connection to " + address + " for " + this.getServerName() + " server");
         Promise<QuicChannel> promise = eventLoop.newPromise();
-        this.serverConnections.put(address, promise);
+        existing = this.serverConnections.putIfAbsent(slot, promise);
+        if (existing != null) {
+            return existing;
+        }
+
+        logger.info("Creating connection " + slot.index() + " to " + address + " for " + this.getServerName() + " server");
 
-        QuicSslContext sslContext = QuicSslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE).applicationProtocols("ng").build();
+        QuicSettings settings = this.getSettings();
+        QuicSslContext sslContext = this.getSslContext();
         ChannelHandler codec = new QuicClientCodecBuilder()
-                .sslContext(sslContext)
-                .maxIdleTimeout(2000, TimeUnit.MILLISECONDS)
-                .initialMaxData(10000000)
-                .initialMaxStreamDataBidirectionalLocal(1000000)
-                .maxRecvUdpPayloadSize(1350)
-                .maxSendUdpPayloadSize(1350)
+                .sslEngineProvider(channel -> sslContext.newEngine(channel.alloc(), address.getHostString(), address.getPort())) // peer host and port are needed for session resumption
+                .maxIdleTimeout(settings.getMaxIdleTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .initialMaxData(settings.getInitialMaxData())
+                .initialMaxStreamDataBidirectionalLocal(settings.getInitialMaxStreamDataBidirectionalLocal())
+                .initialMaxStreamDataBidirectionalRemote(settings.getInitialMaxStreamDataBidirectionalRemote())
+                .initialMaxStreamsBidirectional(settings.getInitialMaxStreamsBidirectional())
+                .maxRecvUdpPayloadSize(settings.getMaxUdpPayloadSize())
+                .maxSendUdpPayloadSize(settings.getMaxUdpPayloadSize())
+                .congestionControlAlgorithm(settings.getCongestionControl())
+                .hystart(settings.isHystart())
                 .activeMigration(false)
                 .build();
 
         new Bootstrap()
-                .group(downstreamLoopGroup)
+                .group(slot.eventLoop())
                 .handler(codec)
-                .channel(getProperSocketChannel())
+                .channel(slot.index() < 0 ? UpstreamEventLoops.getDatagramChannel(slot.eventLoop()) : getProperSocketChannel())
                 .bind(0).addListener((ChannelFuture channelFuture) -> {
                     if (channelFuture.isSuccess()) {
                         QuicChannel.newBootstrap(channelFuture.channel())
@@ -113,10 +218,16 @@ public class QuicTransportServerInfo extends ServerInfo {
                                         logger.debug("Connection to " + address + " for " + this.getServerName() + " server established");
 
                                         QuicChannel quicChannel = quicChannelFuture.getNow();
+                                        ScheduledFuture<?> keepAlive = this.scheduleKeepAlive(quicChannel, slot, settings);
                                         quicChannel.closeFuture().addListener(f -> {
+                                            if (keepAlive != null) {
+                                                keepAlive.cancel(false);
+                                            }
+
                                             logger.debug("Connection to " + address + " for " + this.getServerName() + " server closed");
                                             channelFuture.channel().close();
-                                            this.serverConnections.remove(address);
+                                            this.serverConnections.remove(slot, promise);
+                                            this.scheduleWarmUp(slot);
                                         });
 
                                         promise.trySuccess(quicChannel);
@@ -125,20 +236,75 @@ public class QuicTransportServerInfo extends ServerInfo {
 
                                         promise.tryFailure(quicChannelFuture.cause());
                                         channelFuture.channel().close();
-                                        this.serverConnections.remove(address);
+                                        this.serverConnections.remove(slot, promise);
+                                        this.scheduleWarmUp(slot);
                                     }
                                 });
                     } else {
                         promise.tryFailure(channelFuture.cause());
                         channelFuture.channel().close();
-                        this.serverConnections.remove(address);
+                        this.serverConnections.remove(slot, promise);
+                        this.scheduleWarmUp(slot);
                     }
                 });
 
         return promise;
     }
 
+    /**
+     * Warm pool connections carry no streams until a player joins, so the idle timeout negotiated with the downstream
+     * server would close them. While a slot has no streams, an empty stream is opened and finished every half idle timeout,
+     * which is enough traffic to keep the connection open on both ends.
+     */
+    private ScheduledFuture<?> scheduleKeepAlive(QuicChannel quicChannel, ConnectionSlot slot, QuicSettings settings) {
+        if (slot.index() < 0 || !TransportConfig.get().isQuicWarmConnections()) {
+            return null;
+        }
+
+        long interval = Math.max(KEEP_ALIVE_MIN_INTERVAL, settings.getMaxIdleTimeoutMillis() / 2);
+        return quicChannel.eventLoop().scheduleAtFixedRate(() -> {
+            AtomicInteger streams = this.streamCounts.get(slot);
+            if (streams != null && streams.get() > 0) {
+                return;
+            }
+
+            quicChannel.createStream(QuicStreamType.BIDIRECTIONAL, new ChannelInboundHandlerAdapter() {
+                @Override
+                public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                    ReferenceCountUtil.release(msg);
+                }
+            }).addListener((Future<QuicStreamChannel> streamFuture) -> {
+                if (streamFuture.isSuccess()) {
+                    streamFuture.getNow().close();
+                }
+            });
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Every slot of a pool runs on its own event loop, so one busy downstream server can use all downstream threads.
+     * The loops are offset per address, so the first slots of different servers do not all share one loop.
+     */
+    private static EventLoop getSlotEventLoop(InetSocketAddress address, int slot) {
+        List<EventLoop> eventLoops = TransportEventLoops.getEventLoops();
+        return eventLoops.get(Math.floorMod(address.hashCode() + slot, eventLoops.size()));
+    }
+
     public Class<? extends DatagramChannel> getProperSocketChannel() {
-        return Epoll.isAvailable() ? EpollDatagramChannel.class : NioDatagramChannel.class;
+        return TransportBackend.get().getDatagramChannel();
+    }
+
+    public enum StreamAssignment {
+        LEAST_LOADED,
+        PLAYER_HASH
+    }
+
+    /**
+     * A connection of the pool. Connections co-located with upstream players use index -1 and are keyed by the player's event loop.
+     */
+    private record ConnectionSlot(InetSocketAddress address, int index, EventLoop eventLoop) {
+        private static ConnectionSlot of(InetSocketAddress address, int index) {
+            return new ConnectionSlot(address, index, getSlotEventLoop(address, index));
+        }
     }
 }
@@ -5,36 +5,36 @@ import dev.waterdog.waterdogpe.network.serverinfo.ServerInfo;
 import dev.waterdog.waterdogpe.network.serverinfo.ServerInfoType;
 import dev.waterdog.waterdogpe.player.ProxiedPlayer;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.EventLoop;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.epoll.Epoll;
-import io.netty.channel.epoll.EpollEventLoopGroup;
-import io.netty.channel.epoll.EpollSocketChannel;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.Promise;
-import net.jodah.expiringmap.internal.NamedThreadFactory;
+import org.nethergames.proxytransport.config.TransportConfig;
 import org.nethergames.proxytransport.impl.TransportChannelInitializer;
+import org.nethergames.proxytransport.multiplex.MultiplexedConnectionPool;
+import org.nethergames.proxytransport.utils.TransportBackend;
+import org.nethergames.proxytransport.utils.TransportEventLoops;
+import org.nethergames.proxytransport.utils.UpstreamEventLoops;
 
 import java.net.InetSocketAddress;
-import java.util.concurrent.ThreadFactory;
 
 public class TcpTransportServerInfo extends ServerInfo {
-    public static final int availableCPU = Runtime.getRuntime().availableProcessors();
-    public static final ThreadFactory downstreamThreadFactory = new NamedThreadFactory("TCP-Downstream %s");
-    public static final EventLoopGroup downstreamLoopGroup = Epoll.isAvailable() ? new EpollEventLoopGroup(availableCPU, downstreamThreadFactory) : new NioEventLoopGroup(availableCPU, downstreamThreadFactory);
-
     public static final String TYPE_IDENT = "tcp";
     public static final ServerInfoType TYPE = ServerInfoType.builder()
             .identifier(TYPE_IDENT)
             .serverInfoFactory(TcpTransportServerInfo::new)
             .register();
 
+    private volatile MultiplexedConnectionPool multiplexedPool;
+    private final WarmConnectionPool warmPool;
+
     public TcpTransportServerInfo(String serverName, InetSocketAddress address, InetSocketAddress publicAddress) {
         super(serverName, address, publicAddress);
+
+        TransportConfig config = TransportConfig.get();
+        this.warmPool = config.getTcpWarmConnections() > 0 && !config.isTcpMultiplex() ? new WarmConnectionPool(address, config.getTcpWarmConnections(), TransportEventLoops.get(), getProperSocketChannel()) : null;
     }
 
     @Override
@@ -44,14 +44,35 @@ public class TcpTransportServerInfo extends ServerInfo {
 
     @Override
     public Future<ClientConnection> createConnection(ProxiedPlayer proxiedPlayer) {
-        EventLoop eventLoop = proxiedPlayer.getProxy().getWorkerEventLoopGroup().next();
+        EventLoop upstreamLoop = TransportConfig.get().isCoLocateDownstream() ? UpstreamEventLoops.getEventLoop(proxiedPlayer) : null;
+        EventLoop eventLoop = upstreamLoop != null ? upstreamLoop : proxiedPlayer.getProxy().getWorkerEventLoopGroup().next();
         Promise<ClientConnection> promise = eventLoop.newPromise();
 
+        if (TransportConfig.get().isTcpMultiplex()) { // sessions run on the loop of their shared connection
+            this.getMultiplexedPool().openSession(eventLoop, new TransportChannelInitializer(proxiedPlayer, this, promise)).addListener((Future<Channel> future) -> {
+                if (!future.isSuccess()) {
+                    promise.tryFailure(future.cause());
+                }
+            });
+
+            return promise;
+        }
+
+        TransportChannelInitializer initializer = new TransportChannelInitializer(proxiedPlayer, this, promise);
+        if (this.warmPool != null && this.warmPool.handOver(initializer, () -> this.connect(upstreamLoop, initializer, promise))) {
+            return promise; // already connected, skip the handshake
+        }
+
+        this.connect(upstreamLoop, initializer, promise);
+        return promise;
+    }
+
+    private void connect(EventLoop upstreamLoop, TransportChannelInitializer initializer, Promise<ClientConnection> promise) {
         new Bootstrap()
-                .group(downstreamLoopGroup)
-                .handler(new TransportChannelInitializer(proxiedPlayer, this, promise))
+                .group(upstreamLoop != null ? upstreamLoop : TransportEventLoops.get())
+                .handler(initializer)
                 .localAddress(new InetSocketAddress("0.0.0.0", 0))
-                .channel(getProperSocketChannel())
+                .channel(upstreamLoop != null ? UpstreamEventLoops.getSocketChannel(upstreamLoop) : getProperSocketChannel())
                 .remoteAddress(this.getAddress())
                 .connect().addListener((ChannelFuture future) -> {
                     if (!future.isSuccess()) {
@@ -59,11 +80,22 @@ public class TcpTransportServerInfo extends ServerInfo {
                         future.channel().close();
                     }
                 });
+    }
 
-        return promise;
+    private MultiplexedConnectionPool getMultiplexedPool() {
+        MultiplexedConnectionPool pool = this.multiplexedPool;
+        if (pool == null) {
+            synchronized (this) {
+                if ((pool = this.multiplexedPool) == null) {
+                    this.multiplexedPool = pool = new MultiplexedConnectionPool(this.getAddress(), TransportConfig.get().getTcpMultiplexConnections(), TransportEventLoops.get(), getProperSocketChannel());
+                }
+            }
+        }
+
+        return pool;
     }
 
     public Class<? extends SocketChannel> getProperSocketChannel() {
-        return Epoll.isAvailable() ? EpollSocketChannel.class : NioSocketChannel.class;
+        return TransportBackend.get().getSocketChannel();
     }
 }
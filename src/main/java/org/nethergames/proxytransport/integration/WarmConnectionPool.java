@@ -0,0 +1,157 @@
+package org.nethergames.proxytransport.integration;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.log4j.Log4j2;
+
+import java.net.InetSocketAddress;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a number of connected but unassigned TCP channels to a downstream server, so a player switching servers
+ * does not have to wait for a fresh handshake. The pool is refilled in the background.
+ */
+@Log4j2(topic = "ProxyTransport")
+public class WarmConnectionPool {
+    public static final String IDLE_HANDLER = "warm-idle";
+    private static final long REFILL_INTERVAL = 5; // seconds
+
+    private static final Set<WarmConnectionPool> POOLS = ConcurrentHashMap.newKeySet();
+
+    private final InetSocketAddress address;
+    private final EventLoopGroup eventLoopGroup;
+    private final EventLoop refillLoop;
+    private final Class<? extends Channel> channelClass;
+    private final int minSize;
+    private final Queue<Channel> idleChannels = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connecting = new AtomicInteger();
+    private final ScheduledFuture<?> refillFuture;
+    private volatile boolean closed;
+
+    public WarmConnectionPool(InetSocketAddress address, int minSize, EventLoopGroup eventLoopGroup, Class<? extends Channel> channelClass) {
+        this.address = address;
+        this.minSize = minSize;
+        this.eventLoopGroup = eventLoopGroup;
+        this.refillLoop = eventLoopGroup.next(); // refills never run concurrently, so they cannot overshoot the pool size
+        this.channelClass = channelClass;
+
+        this.refillFuture = this.refillLoop.scheduleAtFixedRate(this::refill, 0, REFILL_INTERVAL, TimeUnit.SECONDS);
+        POOLS.add(this);
+    }
+
+    /**
+     * Close every pool that is still open, used when the plugin is disabled.
+     */
+    public static void closeAll() {
+        for (WarmConnectionPool pool : POOLS) {
+            pool.close();
+        }
+    }
+
+    /**
+     * Hand a warm channel over to the given handler. This happens on the channel's own event loop, if the channel
+     * closed in the meantime the fallback runs there instead. Returns false if the pool has no idle channel.
+     */
+    public boolean handOver(ChannelHandler handler, Runnable fallback) {
+        Channel channel;
+        do {
+            channel = this.idleChannels.poll();
+        } while (channel != null && !channel.isActive());
+
+        this.refillLoop.execute(this::refill);
+        if (channel == null) {
+            return false;
+        }
+
+        Channel warmChannel = channel;
+        warmChannel.eventLoop().execute(() -> {
+            if (warmChannel.isActive() && warmChannel.pipeline().get(IDLE_HANDLER) != null) {
+                warmChannel.pipeline().replace(IDLE_HANDLER, null, handler);
+            } else {
+                warmChannel.close();
+                fallback.run();
+            }
+        });
+
+        return true;
+    }
+
+    public int getIdleCount() {
+        return this.idleChannels.size();
+    }
+
+    /**
+     * Stop refilling the pool and close all idle channels. Channels already handed over are not affected.
+     */
+    public void close() {
+        this.closed = true;
+        POOLS.remove(this);
+        this.refillFuture.cancel(false);
+
+        Channel channel;
+        while ((channel = this.idleChannels.poll()) != null) {
+            channel.close();
+        }
+    }
+
+    private void refill() {
+        while (!this.closed && this.idleChannels.size() + this.connecting.get() < this.minSize) {
+            this.connecting.incrementAndGet();
+            this.connect();
+        }
+    }
+
+    private void connect() {
+        new Bootstrap()
+                .group(this.eventLoopGroup)
+                .handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        channel.pipeline().addLast(IDLE_HANDLER, new IdleHandler());
+                    }
+                })
+                .localAddress(new InetSocketAddress("0.0.0.0", 0))
+                .channel(this.channelClass)
+                .remoteAddress(this.address)
+                .connect().addListener((ChannelFuture future) -> {
+                    if (future.isSuccess() && !this.closed) {
+                        Channel channel = future.channel();
+                        channel.closeFuture().addListener(f -> this.idleChannels.remove(channel));
+                        this.idleChannels.add(channel); // added before the decrement, so a refill never counts it as missing
+                    } else {
+                        if (!future.isSuccess()) {
+                            log.debug("Failed to pre-warm connection to {}", this.address, future.cause());
+                        }
+                        future.channel().close();
+                    }
+
+                    this.connecting.decrementAndGet();
+                    if (this.closed) { // close raced with the connect
+                        this.idleChannels.remove(future.channel());
+                        future.channel().close();
+                    }
+                });
+    }
+
+    /**
+     * Occupies the pipeline of an idle channel. Downstream servers do not send anything before the first frame of the proxy.
+     */
+    private static class IdleHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
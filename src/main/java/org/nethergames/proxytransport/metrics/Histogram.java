@@ -0,0 +1,70 @@
+package org.nethergames.proxytransport.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram with power of two buckets. Recording is a single LongAdder increment, so it can stay enabled on hot paths.
+ */
+public class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        int bucket = value == 0 ? 0 : BUCKETS - 1 - Long.numberOfLeadingZeros(value); // bucket i holds [2^i, 2^(i+1))
+        this.buckets[bucket].increment();
+        this.sum.add(value);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : this.buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * Get the upper bound of the bucket containing the given percentile, or 0 if nothing was recorded.
+     *
+     * @param percentile between 0 and 1
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets[i].sum();
+            total += counts[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target && counts[i] > 0) {
+                return i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+            }
+        }
+
+        return Long.MAX_VALUE;
+    }
+}
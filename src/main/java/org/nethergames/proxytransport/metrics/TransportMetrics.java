@@ -0,0 +1,167 @@
+package org.nethergames.proxytransport.metrics;
+
+import io.netty.util.AttributeKey;
+import lombok.Getter;
+import org.cloudburstmc.protocol.bedrock.data.CompressionAlgorithm;
+import org.cloudburstmc.protocol.bedrock.data.PacketCompressionAlgorithm;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transport counters of a single downstream connection or of all connections to a downstream server.
+ * Values recorded on a connection are added to its server as well.
+ */
+@Getter
+public class TransportMetrics {
+    public static final AttributeKey<TransportMetrics> ATTRIBUTE = AttributeKey.valueOf("proxytransport-metrics");
+
+    private static final Map<String, TransportMetrics> SERVERS = new ConcurrentHashMap<>();
+
+    private final TransportMetrics parent;
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder passedThrough = new LongAdder();
+    private final LongAdder recompressed = new LongAdder();
+    private final Map<CompressionAlgorithm, AlgorithmMetrics> algorithms = new ConcurrentHashMap<>();
+
+    private final Histogram compressionNanos;
+    private final Histogram outboundBufferBytes;
+    private final Histogram rttMicros;
+
+    private TransportMetrics(TransportMetrics parent) {
+        this.parent = parent;
+        // Distributions are only kept per server, a connection shares the histograms of its server
+        this.compressionNanos = parent != null ? parent.compressionNanos : new Histogram();
+        this.outboundBufferBytes = parent != null ? parent.outboundBufferBytes : new Histogram();
+        this.rttMicros = parent != null ? parent.rttMicros : new Histogram();
+    }
+
+    public static TransportMetrics forServer(String serverName) {
+        return SERVERS.computeIfAbsent(serverName, name -> new TransportMetrics(null));
+    }
+
+    public static TransportMetrics newConnection(String serverName) {
+        return new TransportMetrics(forServer(serverName));
+    }
+
+    public static Map<String, TransportMetrics> getServers() {
+        return Collections.unmodifiableMap(SERVERS);
+    }
+
+    public void recordInbound(CompressionAlgorithm algorithm, int compressedBytes, int uncompressedBytes) {
+        this.framesIn.increment();
+        this.bytesIn.add(compressedBytes);
+        this.getAlgorithm(algorithm).record(compressedBytes, uncompressedBytes);
+
+        if (this.parent != null) {
+            this.parent.recordInbound(algorithm, compressedBytes, uncompressedBytes);
+        }
+    }
+
+    /**
+     * Record an inbound batch which was not decompressed. It is left out of the per algorithm ratio.
+     */
+    public void recordInboundCompressed(int compressedBytes) {
+        this.framesIn.increment();
+        this.bytesIn.add(compressedBytes);
+
+        if (this.parent != null) {
+            this.parent.recordInboundCompressed(compressedBytes);
+        }
+    }
+
+    /**
+     * Record an outbound batch sent as it was received. It is left out of the per algorithm ratio.
+     */
+    public void recordPassedThrough(int compressedBytes) {
+        this.passedThrough.increment();
+        this.framesOut.increment();
+        this.bytesOut.add(compressedBytes);
+
+        if (this.parent != null) {
+            this.parent.recordPassedThrough(compressedBytes);
+        }
+    }
+
+    public void recordRecompressed(CompressionAlgorithm algorithm, int compressedBytes, int uncompressedBytes, long nanos) {
+        this.recompressed.increment();
+        this.framesOut.increment();
+        this.bytesOut.add(compressedBytes);
+        this.getAlgorithm(algorithm).record(compressedBytes, uncompressedBytes);
+
+        if (this.parent != null) {
+            this.parent.recordRecompressed(algorithm, compressedBytes, uncompressedBytes, nanos);
+        } else {
+            this.compressionNanos.record(nanos);
+        }
+    }
+
+    public void recordOutboundBuffer(long pendingBytes) {
+        this.outboundBufferBytes.record(pendingBytes);
+    }
+
+    public void recordRtt(long micros) {
+        this.rttMicros.record(micros);
+    }
+
+    private AlgorithmMetrics getAlgorithm(CompressionAlgorithm algorithm) {
+        if (algorithm == null) {
+            algorithm = PacketCompressionAlgorithm.NONE;
+        }
+
+        AlgorithmMetrics metrics = this.algorithms.get(algorithm);
+        return metrics != null ? metrics : this.algorithms.computeIfAbsent(algorithm, key -> new AlgorithmMetrics());
+    }
+
+    /**
+     * Write the counters in the Prometheus text format.
+     */
+    public void appendTo(StringBuilder builder, String serverName) {
+        String labels = "{server=\"" + serverName + "\"}";
+        appendLine(builder, "proxytransport_bytes_in", labels, this.bytesIn.sum());
+        appendLine(builder, "proxytransport_bytes_out", labels, this.bytesOut.sum());
+        appendLine(builder, "proxytransport_frames_in", labels, this.framesIn.sum());
+        appendLine(builder, "proxytransport_frames_out", labels, this.framesOut.sum());
+        appendLine(builder, "proxytransport_batches_passed_through", labels, this.passedThrough.sum());
+        appendLine(builder, "proxytransport_batches_recompressed", labels, this.recompressed.sum());
+
+        this.algorithms.forEach((algorithm, metrics) -> {
+            String algorithmLabels = "{server=\"" + serverName + "\",algorithm=\"" + algorithm + "\"}";
+            appendLine(builder, "proxytransport_compressed_bytes", algorithmLabels, metrics.getCompressedBytes().sum());
+            appendLine(builder, "proxytransport_uncompressed_bytes", algorithmLabels, metrics.getUncompressedBytes().sum());
+        });
+
+        appendHistogram(builder, "proxytransport_compression_nanos", serverName, this.compressionNanos);
+        appendHistogram(builder, "proxytransport_outbound_buffer_bytes", serverName, this.outboundBufferBytes);
+        appendHistogram(builder, "proxytransport_rtt_micros", serverName, this.rttMicros);
+    }
+
+    private static void appendHistogram(StringBuilder builder, String name, String serverName, Histogram histogram) {
+        appendLine(builder, name + "_count", "{server=\"" + serverName + "\"}", histogram.getCount());
+        appendLine(builder, name + "_sum", "{server=\"" + serverName + "\"}", histogram.getSum());
+        for (double quantile : new double[]{0.5, 0.9, 0.99}) {
+            appendLine(builder, name, "{server=\"" + serverName + "\",quantile=\"" + quantile + "\"}", histogram.getPercentile(quantile));
+        }
+    }
+
+    private static void appendLine(StringBuilder builder, String name, String labels, long value) {
+        builder.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    @Getter
+    public static class AlgorithmMetrics {
+        private final LongAdder compressedBytes = new LongAdder();
+        private final LongAdder uncompressedBytes = new LongAdder();
+
+        private void record(int compressedBytes, int uncompressedBytes) {
+            this.compressedBytes.add(compressedBytes);
+            this.uncompressedBytes.add(uncompressedBytes);
+        }
+    }
+}
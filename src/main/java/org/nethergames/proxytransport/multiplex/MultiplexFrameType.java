@@ -0,0 +1,25 @@
+package org.nethergames.proxytransport.multiplex;
+
+/**
+ * Frame types of a multiplexed TCP connection.
+ * Every frame is formatted as {@code [length: int][sessionId: int][type: byte][payload]} where length covers everything after itself.
+ */
+public final class MultiplexFrameType {
+    public static final int HEADER_LENGTH = 9;
+
+    /**
+     * A chunk of the session's byte stream. The stream itself uses the regular ProxyTransport framing.
+     */
+    public static final byte DATA = 0;
+    /**
+     * A new session was opened by the proxy.
+     */
+    public static final byte OPEN = 1;
+    /**
+     * The session was closed by either side.
+     */
+    public static final byte CLOSE = 2;
+
+    private MultiplexFrameType() {
+    }
+}
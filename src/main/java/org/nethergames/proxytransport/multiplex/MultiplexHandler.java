@@ -0,0 +1,163 @@
+package org.nethergames.proxytransport.multiplex;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Demultiplexes the frames of a shared TCP connection into its {@link MultiplexedChannel}s and writes their data back.
+ * All methods are called on the event loop of the shared connection.
+ */
+public class MultiplexHandler extends ByteToMessageDecoder {
+    public static final String NAME = "multiplex-handler";
+
+    private final IntObjectMap<MultiplexedChannel> sessions = new IntObjectHashMap<>();
+    private final List<MultiplexedChannel> readSessions = new ArrayList<>();
+    private final int maxFrameLength;
+    private ChannelHandlerContext ctx;
+    private int nextSessionId = 1;
+    private volatile int sessionCount; // the session map is only accessed on the event loop, the pool reads this from others
+
+    public MultiplexHandler(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        super.handlerAdded(ctx);
+    }
+
+    public int getSessionCount() {
+        return this.sessionCount;
+    }
+
+    /**
+     * Open a new session on this connection. Must be called on the connection's event loop.
+     */
+    public ChannelFuture openSession(ChannelHandler initializer) {
+        MultiplexedChannel channel = new MultiplexedChannel(this.ctx.channel(), this, this.nextSessionId++);
+        channel.pipeline().addLast(initializer);
+        this.sessions.put(channel.getSessionId(), channel);
+        this.sessionCount = this.sessions.size();
+
+        this.writeControl(channel.getSessionId(), MultiplexFrameType.OPEN);
+        return this.ctx.channel().eventLoop().register(channel);
+    }
+
+    void sessionClosed(MultiplexedChannel channel, boolean notifyRemote) {
+        boolean removed = this.sessions.remove(channel.getSessionId()) != null;
+        this.sessionCount = this.sessions.size();
+        if (removed && notifyRemote && this.ctx.channel().isActive()) {
+            this.writeControl(channel.getSessionId(), MultiplexFrameType.CLOSE);
+            this.flush();
+        }
+    }
+
+    void writeData(int sessionId, List<ByteBuf> buffers, int length) {
+        ByteBuf header = this.ctx.alloc().ioBuffer(MultiplexFrameType.HEADER_LENGTH);
+        header.writeInt(length + MultiplexFrameType.HEADER_LENGTH - 4);
+        header.writeInt(sessionId);
+        header.writeByte(MultiplexFrameType.DATA);
+
+        this.ctx.write(header, this.ctx.voidPromise());
+        for (ByteBuf buffer : buffers) {
+            this.ctx.write(buffer, this.ctx.voidPromise());
+        }
+    }
+
+    void flush() {
+        this.ctx.flush();
+    }
+
+    private void writeControl(int sessionId, byte type) {
+        ByteBuf frame = this.ctx.alloc().ioBuffer(MultiplexFrameType.HEADER_LENGTH);
+        frame.writeInt(MultiplexFrameType.HEADER_LENGTH - 4);
+        frame.writeInt(sessionId);
+        frame.writeByte(type);
+
+        this.ctx.write(frame, this.ctx.voidPromise());
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (in.readableBytes() < 4) {
+            return;
+        }
+
+        int length = in.getInt(in.readerIndex());
+        if (length < MultiplexFrameType.HEADER_LENGTH - 4 || length > this.maxFrameLength) {
+            throw new CorruptedFrameException("Invalid multiplexed frame length: " + length);
+        }
+
+        if (in.readableBytes() - 4 < length) {
+            return;
+        }
+
+        in.skipBytes(4);
+        int sessionId = in.readInt();
+        byte type = in.readByte();
+        int payloadLength = length - (MultiplexFrameType.HEADER_LENGTH - 4);
+
+        MultiplexedChannel channel = this.sessions.get(sessionId);
+        if (channel == null) {
+            in.skipBytes(payloadLength);
+            return;
+        }
+
+        switch (type) {
+            case MultiplexFrameType.DATA -> {
+                channel.receive(in.readRetainedSlice(payloadLength));
+                if (!this.readSessions.contains(channel)) {
+                    this.readSessions.add(channel);
+                }
+            }
+            case MultiplexFrameType.CLOSE -> {
+                in.skipBytes(payloadLength);
+                channel.closeRemote();
+            }
+            default -> in.skipBytes(payloadLength);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        super.channelReadComplete(ctx);
+
+        for (MultiplexedChannel channel : this.readSessions) {
+            channel.receiveComplete();
+        }
+        this.readSessions.clear();
+    }
+
+    /**
+     * Sessions write straight through to this connection, so they follow its writability.
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        for (MultiplexedChannel channel : new ArrayList<>(this.sessions.values())) {
+            channel.pipeline().fireChannelWritabilityChanged();
+        }
+
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (MultiplexedChannel channel : new ArrayList<>(this.sessions.values())) {
+            channel.closeRemote();
+        }
+        this.sessions.clear();
+        this.sessionCount = 0;
+
+        super.channelInactive(ctx);
+    }
+}
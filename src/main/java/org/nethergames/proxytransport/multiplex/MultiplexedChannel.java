@@ -0,0 +1,182 @@
+package org.nethergames.proxytransport.multiplex;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.util.ReferenceCountUtil;
+import lombok.Getter;
+
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * A player session carried over a shared TCP connection. It runs on the event loop of its parent connection.
+ */
+public class MultiplexedChannel extends AbstractChannel {
+    private static final ChannelMetadata METADATA = new ChannelMetadata(false);
+
+    private final MultiplexHandler handler;
+    @Getter
+    private final int sessionId;
+    private final ChannelConfig config = new DefaultChannelConfig(this);
+    private final Queue<Object> inboundQueue = new ArrayDeque<>();
+
+    private volatile boolean open = true;
+    private volatile boolean active = true;
+    private boolean readPending;
+    private boolean remoteClosed;
+
+    MultiplexedChannel(Channel parent, MultiplexHandler handler, int sessionId) {
+        super(parent);
+        this.handler = handler;
+        this.sessionId = sessionId;
+    }
+
+    void receive(ByteBuf data) {
+        if (!this.open) {
+            data.release();
+            return;
+        }
+
+        if (this.readPending || this.config.isAutoRead()) {
+            this.pipeline().fireChannelRead(data);
+        } else {
+            this.inboundQueue.add(data);
+        }
+    }
+
+    void receiveComplete() {
+        if (this.open) {
+            this.pipeline().fireChannelReadComplete();
+        }
+    }
+
+    void closeRemote() {
+        this.remoteClosed = true;
+        this.unsafe().close(this.voidPromise());
+    }
+
+    @Override
+    protected AbstractUnsafe newUnsafe() {
+        return new MultiplexedUnsafe();
+    }
+
+    @Override
+    protected boolean isCompatible(EventLoop loop) {
+        return loop == this.parent().eventLoop();
+    }
+
+    @Override
+    protected SocketAddress localAddress0() {
+        return this.parent().localAddress();
+    }
+
+    @Override
+    protected SocketAddress remoteAddress0() {
+        return this.parent().remoteAddress();
+    }
+
+    @Override
+    protected void doBind(SocketAddress localAddress) {
+        throw new UnsupportedOperationException("Multiplexed sessions cannot be bound");
+    }
+
+    @Override
+    protected void doDisconnect() {
+        this.doClose();
+    }
+
+    @Override
+    protected void doClose() {
+        if (!this.open) {
+            return;
+        }
+
+        this.open = false;
+        this.active = false;
+
+        Object msg;
+        while ((msg = this.inboundQueue.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+
+        this.handler.sessionClosed(this, !this.remoteClosed);
+    }
+
+    @Override
+    protected void doBeginRead() {
+        this.readPending = true;
+
+        boolean read = false;
+        Object msg;
+        while ((msg = this.inboundQueue.poll()) != null) {
+            this.pipeline().fireChannelRead(msg);
+            read = true;
+        }
+
+        if (read) {
+            this.readPending = false;
+            this.pipeline().fireChannelReadComplete();
+        }
+    }
+
+    @Override
+    protected void doWrite(ChannelOutboundBuffer in) {
+        List<ByteBuf> buffers = new ArrayList<>();
+        int length = 0;
+
+        Object msg;
+        while ((msg = in.current()) != null) {
+            if (msg instanceof ByteBuf buf) {
+                length += buf.readableBytes();
+                buffers.add(buf.retain());
+                in.remove();
+            } else {
+                in.remove(new UnsupportedOperationException("Unsupported message type: " + msg.getClass().getSimpleName()));
+            }
+        }
+
+        if (!buffers.isEmpty()) {
+            this.handler.writeData(this.sessionId, buffers, length); // all pending writes share one frame
+        }
+
+        this.handler.flush();
+    }
+
+    @Override
+    public ChannelConfig config() {
+        return this.config;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    @Override
+    public boolean isActive() {
+        return this.active;
+    }
+
+    /**
+     * Pending writes are moved to the shared connection right away, so a session is only as writable as its parent.
+     */
+    @Override
+    public boolean isWritable() {
+        return super.isWritable() && this.parent().isWritable();
+    }
+
+    @Override
+    public ChannelMetadata metadata() {
+        return METADATA;
+    }
+
+    private class MultiplexedUnsafe extends AbstractUnsafe {
+        @Override
+        public void connect(SocketAddress remoteAddress, SocketAddress localAddress, ChannelPromise promise) {
+            promise.setFailure(new UnsupportedOperationException("Multiplexed sessions are opened by their parent connection"));
+        }
+    }
+}
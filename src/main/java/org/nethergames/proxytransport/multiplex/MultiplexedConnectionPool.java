@@ -0,0 +1,178 @@
+package org.nethergames.proxytransport.multiplex;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import lombok.extern.log4j.Log4j2;
+import org.nethergames.proxytransport.config.TransportConfig;
+
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small pool of shared TCP connections to one downstream address. Sessions are opened on the connection carrying the fewest sessions,
+ * empty slots are connected lazily.
+ */
+@Log4j2(topic = "ProxyTransport")
+public class MultiplexedConnectionPool {
+    private static final Set<MultiplexedConnectionPool> POOLS = ConcurrentHashMap.newKeySet();
+
+    private final InetSocketAddress address;
+    private final EventLoopGroup eventLoopGroup;
+    private final Class<? extends SocketChannel> channelClass;
+    private final AtomicReferenceArray<Future<Channel>> connections;
+    private volatile boolean closed;
+
+    public MultiplexedConnectionPool(InetSocketAddress address, int size, EventLoopGroup eventLoopGroup, Class<? extends SocketChannel> channelClass) {
+        this.address = address;
+        this.eventLoopGroup = eventLoopGroup;
+        this.channelClass = channelClass;
+        this.connections = new AtomicReferenceArray<>(Math.max(1, size));
+        POOLS.add(this);
+    }
+
+    /**
+     * Close every pool that is still open, used when the plugin is disabled.
+     */
+    public static void closeAll() {
+        for (MultiplexedConnectionPool pool : POOLS) {
+            pool.close();
+        }
+    }
+
+    public Future<Channel> openSession(EventLoop eventLoop, ChannelHandler initializer) {
+        Promise<Channel> promise = eventLoop.newPromise();
+        if (this.closed) {
+            return promise.setFailure(new ChannelException("Multiplexed connection pool to " + this.address + " is closed"));
+        }
+
+        this.getConnection().addListener((Future<Channel> future) -> {
+            if (!future.isSuccess()) {
+                promise.tryFailure(future.cause());
+                return;
+            }
+
+            Channel connection = future.getNow();
+            connection.eventLoop().execute(() -> {
+                MultiplexHandler handler = connection.pipeline().get(MultiplexHandler.class);
+                if (handler == null || !connection.isActive()) {
+                    promise.tryFailure(new ChannelException("Multiplexed connection to " + this.address + " was closed"));
+                    return;
+                }
+
+                handler.openSession(initializer).addListener((ChannelFuture registerFuture) -> {
+                    if (registerFuture.isSuccess()) {
+                        promise.trySuccess(registerFuture.channel());
+                    } else {
+                        promise.tryFailure(registerFuture.cause());
+                        registerFuture.channel().close();
+                    }
+                });
+            });
+        });
+
+        return promise;
+    }
+
+    /**
+     * Close all shared connections, which closes every session on them. Sessions opened afterwards fail.
+     */
+    public void close() {
+        this.closed = true;
+        POOLS.remove(this);
+
+        for (int slot = 0; slot < this.connections.length(); slot++) {
+            Future<Channel> future = this.connections.getAndSet(slot, null);
+            if (future != null) {
+                future.addListener((Future<Channel> connectFuture) -> {
+                    if (connectFuture.isSuccess()) {
+                        connectFuture.getNow().close();
+                    }
+                });
+            }
+        }
+    }
+
+    private Future<Channel> getConnection() {
+        int selected = -1;
+        int selectedSessions = Integer.MAX_VALUE;
+
+        for (int slot = 0; slot < this.connections.length(); slot++) {
+            Future<Channel> future = this.connections.get(slot);
+            if (future == null) {
+                selected = slot;
+                break;
+            }
+
+            int sessions = sessionCount(future);
+            if (sessions < selectedSessions) {
+                selected = slot;
+                selectedSessions = sessions;
+            }
+        }
+
+        Future<Channel> current = this.connections.get(selected);
+        if (current != null) {
+            return current;
+        }
+
+        Promise<Channel> promise = this.eventLoopGroup.next().newPromise();
+        if (!this.connections.compareAndSet(selected, null, promise)) {
+            return this.getConnection(); // another thread connected this slot first
+        }
+
+        this.connect(selected, promise);
+        return promise;
+    }
+
+    private void connect(int slot, Promise<Channel> promise) {
+        log.debug("Creating multiplexed connection {} to {}", slot, this.address);
+
+        new Bootstrap()
+                .group(this.eventLoopGroup)
+                .channel(this.channelClass)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        channel.pipeline()
+                                .addLast(new FlushConsolidationHandler(FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES, true))
+                                .addLast(MultiplexHandler.NAME, new MultiplexHandler(TransportConfig.get().getMaxFrameLength() + MultiplexFrameType.HEADER_LENGTH));
+                    }
+                })
+                .localAddress(new InetSocketAddress("0.0.0.0", 0))
+                .remoteAddress(this.address)
+                .connect().addListener((ChannelFuture future) -> {
+                    if (future.isSuccess() && this.closed) { // closed while connecting
+                        promise.tryFailure(new ChannelException("Multiplexed connection pool to " + this.address + " is closed"));
+                        future.channel().close();
+                    } else if (future.isSuccess()) {
+                        future.channel().closeFuture().addListener(f -> {
+                            log.debug("Multiplexed connection {} to {} closed", slot, this.address);
+                            this.connections.compareAndSet(slot, promise, null);
+                        });
+
+                        promise.trySuccess(future.channel());
+                    } else {
+                        promise.tryFailure(future.cause());
+                        future.channel().close();
+                        this.connections.compareAndSet(slot, promise, null);
+                    }
+                });
+    }
+
+    private static int sessionCount(Future<Channel> future) {
+        if (!future.isDone()) {
+            return 0; // still connecting, prefer it over opening another connection
+        }
+
+        Channel channel = future.getNow();
+        MultiplexHandler handler = channel == null ? null : channel.pipeline().get(MultiplexHandler.class);
+        return handler == null ? Integer.MAX_VALUE - 1 : handler.getSessionCount();
+    }
+}
@@ -0,0 +1,96 @@
+package org.nethergames.proxytransport.ratelimit;
+
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the packets a player sends to a downstream server. Every packet takes tokens from the global budget,
+ * packets belonging to a {@link RateLimitRule} additionally need a token of their group's budget.
+ */
+public class PacketRateLimiter {
+    private final TokenBucket global;
+    private final IntObjectMap<Group> groupsById = new IntObjectHashMap<>();
+    private final Map<String, Group> groups = new LinkedHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+
+    public PacketRateLimiter(double rate, int burst, List<RateLimitRule> rules) {
+        this.global = new TokenBucket(rate, burst);
+
+        for (RateLimitRule rule : rules) {
+            Group group = new Group(rule);
+            this.groups.put(rule.name(), group);
+            for (int packetId : rule.packetIds()) {
+                this.groupsById.put(packetId, group);
+            }
+        }
+    }
+
+    public boolean hasGroups() {
+        return !this.groups.isEmpty();
+    }
+
+    /**
+     * Take tokens from the global budget. Returns false if the player exceeded it.
+     */
+    public boolean tryAcquire(int tokens) {
+        if (this.global.tryAcquire(tokens)) {
+            return true;
+        }
+
+        this.rejected.increment();
+        return false;
+    }
+
+    /**
+     * Take a token from the budget of the packet's group. Returns false if the packet should be dropped.
+     */
+    public boolean tryAcquireGroup(int packetId) {
+        Group group = this.groupsById.get(packetId);
+        if (group == null || group.bucket.tryAcquire(1)) {
+            return true;
+        }
+
+        group.limited.increment();
+        return false;
+    }
+
+    public int getWeight(int packetId) {
+        Group group = this.groupsById.get(packetId);
+        return group == null ? 1 : group.getRule().weight();
+    }
+
+    /**
+     * Number of times the global budget was exceeded.
+     */
+    public long getRejectedCount() {
+        return this.rejected.sum();
+    }
+
+    /**
+     * Number of dropped packets per group.
+     */
+    public Map<String, Long> getLimitedCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        this.groups.forEach((name, group) -> counts.put(name, group.limited.sum()));
+        return Collections.unmodifiableMap(counts);
+    }
+
+    private static class Group {
+        @Getter
+        private final RateLimitRule rule;
+        private final TokenBucket bucket;
+        private final LongAdder limited = new LongAdder();
+
+        private Group(RateLimitRule rule) {
+            this.rule = rule;
+            this.bucket = new TokenBucket(rule.rate(), rule.burst());
+        }
+    }
+}
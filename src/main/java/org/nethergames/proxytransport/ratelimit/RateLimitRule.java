@@ -0,0 +1,33 @@
+package org.nethergames.proxytransport.ratelimit;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * A budget for a group of packet ids, for example movement or chat.
+ *
+ * @param rate   packets per second, required
+ * @param burst  packets that may be sent at once after being idle, defaults to one second's worth
+ * @param weight how many tokens of the global budget a packet of this group costs
+ */
+public record RateLimitRule(String name, Set<Integer> packetIds, double rate, int burst, int weight) {
+
+    public static RateLimitRule fromMap(Map<?, ?> map) {
+        Set<Integer> packetIds = ((List<?>) map.get("packet-ids")).stream()
+                .map(id -> ((Number) id).intValue())
+                .collect(Collectors.toUnmodifiableSet());
+
+        String name = String.valueOf(map.get("name"));
+        if (!(map.get("rate") instanceof Number rate) || rate.doubleValue() <= 0) {
+            throw new IllegalArgumentException("Rate limit group " + name + " needs a positive rate");
+        }
+
+        Object burst = map.get("burst");
+        Object weight = map.get("weight");
+        return new RateLimitRule(name, packetIds, rate.doubleValue(),
+                burst == null ? (int) Math.ceil(rate.doubleValue()) : ((Number) burst).intValue(), // one second's worth by default
+                weight == null ? 1 : ((Number) weight).intValue());
+    }
+}
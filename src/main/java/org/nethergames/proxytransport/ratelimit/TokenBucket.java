@@ -0,0 +1,41 @@
+package org.nethergames.proxytransport.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket which refills lazily on every acquire, so no timer task is needed.
+ * Implemented as a generic cell rate algorithm: the only state is the theoretical arrival time of the next token.
+ */
+public class TokenBucket {
+    private final long emissionInterval;
+    private final long burstTolerance;
+    private final AtomicLong theoreticalArrival;
+
+    /**
+     * @param rate  tokens refilled per second
+     * @param burst maximum tokens that can be taken at once
+     */
+    public TokenBucket(double rate, int burst) {
+        this.emissionInterval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        this.burstTolerance = this.emissionInterval * Math.max(1, burst);
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    public boolean tryAcquire(int tokens) {
+        long now = System.nanoTime();
+        long increment = this.emissionInterval * tokens;
+
+        while (true) {
+            long arrival = this.theoreticalArrival.get();
+            long next = Math.max(arrival, now) + increment;
+            if (next - now > this.burstTolerance) {
+                return false;
+            }
+
+            if (this.theoreticalArrival.compareAndSet(arrival, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.nethergames.proxytransport.stream;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * A group of packet ids carried on its own QUIC stream, for example world data. Packets of a class keep their order,
+ * but may overtake or fall behind packets of other classes, so packets which depend on each other belong to the same class.
+ */
+public record TrafficClass(String name, Set<Integer> packetIds) {
+
+    public static TrafficClass fromMap(Map<?, ?> map) {
+        Set<Integer> packetIds = ((List<?>) map.get("packet-ids")).stream()
+                .map(id -> ((Number) id).intValue())
+                .collect(Collectors.toUnmodifiableSet());
+
+        return new TrafficClass(String.valueOf(map.get("name")), packetIds);
+    }
+}
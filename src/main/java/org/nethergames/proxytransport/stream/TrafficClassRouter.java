@@ -0,0 +1,311 @@
+package org.nethergames.proxytransport.stream;
+
+import dev.waterdog.waterdogpe.network.connection.codec.batch.BedrockBatchEncoder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPromise;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.incubator.codec.quic.QuicStreamType;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.PromiseNotifier;
+import lombok.extern.log4j.Log4j2;
+import org.cloudburstmc.protocol.bedrock.netty.BedrockBatchWrapper;
+import org.cloudburstmc.protocol.bedrock.netty.BedrockPacketWrapper;
+import org.cloudburstmc.protocol.bedrock.netty.codec.compression.CompressionCodec;
+import org.cloudburstmc.protocol.bedrock.netty.codec.compression.CompressionStrategy;
+import org.nethergames.proxytransport.compression.ProxyTransportCompressionCodec;
+import org.nethergames.proxytransport.impl.TransportChannelInitializer;
+import org.nethergames.proxytransport.impl.TransportControlHandler;
+import org.nethergames.proxytransport.metrics.TransportMetrics;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Splits the session of a player over several QUIC streams, so a large batch of one traffic class that is waiting for
+ * a retransmission does not hold back the packets of the others. Sits in the pipeline of the primary stream between the
+ * packet codec and the batch encoder: packets of a class are moved into a batch of their own and written to the stream
+ * of that class, everything else stays on the primary stream. Batches the downstream server sends on an additional
+ * stream are handed to the primary pipeline after decompression.
+ * <p>
+ * The additional streams are opened together with the primary stream. Until a stream is bound its packets are sent on
+ * the primary stream.
+ */
+@Log4j2(topic = "ProxyTransport")
+public class TrafficClassRouter extends ChannelDuplexHandler {
+    public static final String NAME = "traffic-class-router";
+
+    private final int[] classByPacketId;
+    private final AtomicReferenceArray<QuicStreamChannel> streams;
+    private final boolean[] unflushed;
+    private boolean opened;
+
+    public TrafficClassRouter(List<TrafficClass> classes) {
+        int maxPacketId = classes.stream().flatMap(trafficClass -> trafficClass.packetIds().stream()).mapToInt(Integer::intValue).max().orElse(-1);
+        this.classByPacketId = new int[maxPacketId + 1];
+        Arrays.fill(this.classByPacketId, -1);
+        for (int index = 0; index < classes.size(); index++) {
+            for (int packetId : classes.get(index).packetIds()) {
+                this.classByPacketId[packetId] = index;
+            }
+        }
+
+        this.streams = new AtomicReferenceArray<>(classes.size());
+        this.unflushed = new boolean[classes.size()];
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        if (ctx.channel().isActive()) {
+            this.openStreams((QuicStreamChannel) ctx.channel());
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.openStreams((QuicStreamChannel) ctx.channel());
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (int index = 0; index < this.streams.length(); index++) {
+            QuicStreamChannel stream = this.streams.getAndSet(index, null);
+            if (stream != null) {
+                stream.close();
+            }
+        }
+
+        super.channelInactive(ctx);
+    }
+
+    private void openStreams(QuicStreamChannel primary) {
+        if (this.opened) {
+            return;
+        }
+
+        this.opened = true;
+        for (int index = 0; index < this.streams.length(); index++) {
+            int trafficClass = index;
+            primary.parent().createStream(QuicStreamType.BIDIRECTIONAL, new ChannelInitializer<QuicStreamChannel>() {
+                @Override
+                protected void initChannel(QuicStreamChannel stream) {
+                    stream.attr(TransportMetrics.ATTRIBUTE).set(primary.attr(TransportMetrics.ATTRIBUTE).get());
+
+                    stream.config().setWriteBufferWaterMark(primary.config().getWriteBufferWaterMark());
+
+                    ProxyTransportCompressionCodec codec = (ProxyTransportCompressionCodec) primary.pipeline().get(CompressionCodec.NAME);
+                    TransportChannelInitializer.initTransportPipeline(stream, codec.getStrategy(), codec.isPrefixed());
+                    stream.pipeline()
+                            .addLast(BedrockBatchEncoder.NAME, new BedrockBatchEncoder())
+                            .addLast(new StreamHandler(primary, trafficClass));
+                }
+            }).addListener((Future<QuicStreamChannel> future) -> {
+                if (!future.isSuccess()) {
+                    log.warn("Failed to open stream for traffic class {}, its packets stay on the primary stream", trafficClass, future.cause());
+                }
+            });
+        }
+    }
+
+    /**
+     * Replace the compression codec of every additional stream, they always use the compression of the primary stream.
+     */
+    public void setCompressionStrategy(CompressionStrategy strategy, boolean prefixed) {
+        for (int index = 0; index < this.streams.length(); index++) {
+            QuicStreamChannel stream = this.streams.get(index);
+            if (stream != null) {
+                stream.pipeline().replace(CompressionCodec.NAME, CompressionCodec.NAME, new ProxyTransportCompressionCodec(strategy, prefixed));
+            }
+        }
+    }
+
+    /**
+     * Whether all additional streams are below their high watermark. A backed up class stream backs up the whole session,
+     * changes are signalled with a writability change in the primary pipeline.
+     */
+    public boolean isWritable() {
+        for (int index = 0; index < this.streams.length(); index++) {
+            QuicStreamChannel stream = this.streams.get(index);
+            if (stream != null && !stream.isWritable()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!(msg instanceof BedrockBatchWrapper batch)) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        BedrockBatchWrapper[] split = null;
+        Iterator<BedrockPacketWrapper> iterator = batch.getPackets().iterator();
+        while (iterator.hasNext()) {
+            BedrockPacketWrapper packet = iterator.next();
+            int trafficClass = this.getTrafficClass(packet.getPacketId());
+            if (trafficClass < 0 || this.streams.get(trafficClass) == null) {
+                continue;
+            }
+
+            if (split == null) {
+                split = new BedrockBatchWrapper[this.streams.length()];
+            }
+
+            if (split[trafficClass] == null) {
+                split[trafficClass] = BedrockBatchWrapper.newInstance();
+            }
+
+            iterator.remove();
+            split[trafficClass].getPackets().add(packet);
+        }
+
+        if (split == null) {
+            ctx.write(batch, promise);
+            return;
+        }
+
+        boolean remaining = !batch.getPackets().isEmpty();
+        for (int trafficClass = 0; trafficClass < split.length; trafficClass++) {
+            if (split[trafficClass] != null) {
+                split[trafficClass].modify();
+                this.writeToStream(trafficClass, split[trafficClass], remaining ? null : promise);
+                remaining = true; // the promise of the batch is completed by a single write
+            }
+        }
+
+        if (batch.getPackets().isEmpty()) {
+            batch.release();
+        } else {
+            batch.modify(); // the compressed payload still contains the packets moved to other streams
+            ctx.write(batch, promise);
+        }
+    }
+
+    private void writeToStream(int trafficClass, BedrockBatchWrapper batch, ChannelPromise promise) {
+        QuicStreamChannel stream = this.streams.get(trafficClass);
+        if (promise == null || promise.isVoid()) {
+            stream.write(batch, stream.voidPromise());
+        } else {
+            stream.write(batch).addListener(new PromiseNotifier<>(promise));
+        }
+
+        this.unflushed[trafficClass] = true;
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        for (int index = 0; index < this.unflushed.length; index++) {
+            if (this.unflushed[index]) {
+                this.unflushed[index] = false;
+
+                QuicStreamChannel stream = this.streams.get(index);
+                if (stream != null) {
+                    stream.flush();
+                }
+            }
+        }
+
+        ctx.flush();
+    }
+
+    private int getTrafficClass(int packetId) {
+        return packetId >= 0 && packetId < this.classByPacketId.length ? this.classByPacketId[packetId] : -1;
+    }
+
+    /**
+     * Binds an additional stream to the session and forwards what the downstream server sends on it.
+     */
+    private class StreamHandler extends ChannelInboundHandlerAdapter {
+        private final Channel primary;
+        private final int trafficClass;
+        private boolean bound;
+
+        private StreamHandler(Channel primary, int trafficClass) {
+            this.primary = primary;
+            this.trafficClass = trafficClass;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            if (ctx.channel().isActive()) {
+                this.bind(ctx);
+            }
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            this.bind(ctx);
+            super.channelActive(ctx);
+        }
+
+        private void bind(ChannelHandlerContext ctx) {
+            if (this.bound) {
+                return;
+            }
+
+            this.bound = true;
+            if (!this.primary.isActive()) {
+                ctx.close();
+                return;
+            }
+
+            QuicStreamChannel stream = (QuicStreamChannel) ctx.channel();
+            ctx.writeAndFlush(TransportControlHandler.newBindFrame(ctx.alloc(), ((QuicStreamChannel) this.primary).streamId(), this.trafficClass), ctx.voidPromise());
+            streams.set(this.trafficClass, stream);
+            stream.closeFuture().addListener(future -> {
+                if (streams.compareAndSet(this.trafficClass, stream, null) && !stream.isWritable() && this.primary.isActive()) {
+                    this.primary.pipeline().fireChannelWritabilityChanged(); // no longer holds back the session
+                }
+            });
+
+            // Compression may have been negotiated since the stream was initialized, later changes reach it through setCompressionStrategy
+            ProxyTransportCompressionCodec primaryCodec = (ProxyTransportCompressionCodec) this.primary.pipeline().get(CompressionCodec.NAME);
+            ProxyTransportCompressionCodec streamCodec = (ProxyTransportCompressionCodec) ctx.pipeline().get(CompressionCodec.NAME);
+            if (primaryCodec != null && (primaryCodec.getStrategy() != streamCodec.getStrategy() || primaryCodec.isPrefixed() != streamCodec.isPrefixed())) {
+                ctx.pipeline().replace(CompressionCodec.NAME, CompressionCodec.NAME, new ProxyTransportCompressionCodec(primaryCodec.getStrategy(), primaryCodec.isPrefixed()));
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (this.primary.isActive()) {
+                this.primary.pipeline().fireChannelWritabilityChanged(); // streams of a connection share its event loop
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ChannelHandlerContext codecContext = this.primary.pipeline().context(CompressionCodec.NAME);
+            if (codecContext == null) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+
+            codecContext.fireChannelRead(msg); // continue in the primary pipeline after its compression codec
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ChannelHandlerContext codecContext = this.primary.pipeline().context(CompressionCodec.NAME);
+            if (codecContext != null) {
+                codecContext.fireChannelReadComplete();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.warn("Closing stream of traffic class {}", this.trafficClass, cause);
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.nethergames.proxytransport.utils;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringDatagramChannel;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUringSocketChannel;
+import lombok.extern.log4j.Log4j2;
+import org.nethergames.proxytransport.config.TransportConfig;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The native transport used for downstream sockets. Falls back from io_uring to epoll to NIO depending on what the host supports.
+ */
+@Log4j2(topic = "ProxyTransport")
+public enum TransportBackend {
+    IO_URING {
+        @Override
+        public boolean isAvailable() {
+            return IOUring.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new IOUringEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends SocketChannel> getSocketChannel() {
+            return IOUringSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> getDatagramChannel() {
+            return IOUringDatagramChannel.class;
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> getServerSocketChannel() {
+            return IOUringServerSocketChannel.class;
+        }
+    },
+    EPOLL {
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new EpollEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends SocketChannel> getSocketChannel() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> getDatagramChannel() {
+            return EpollDatagramChannel.class;
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> getServerSocketChannel() {
+            return EpollServerSocketChannel.class;
+        }
+    },
+    NIO {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new NioEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends SocketChannel> getSocketChannel() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> getDatagramChannel() {
+            return NioDatagramChannel.class;
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> getServerSocketChannel() {
+            return NioServerSocketChannel.class;
+        }
+    };
+
+    private static volatile TransportBackend current;
+
+    public abstract boolean isAvailable();
+
+    public abstract EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory);
+
+    public abstract Class<? extends SocketChannel> getSocketChannel();
+
+    public abstract Class<? extends DatagramChannel> getDatagramChannel();
+
+    public abstract Class<? extends ServerSocketChannel> getServerSocketChannel();
+
+    /**
+     * Get the backend for downstream sockets. The configured backend is used if available, otherwise the next one in the fallback order.
+     */
+    public static TransportBackend get() {
+        TransportBackend backend = current;
+        if (backend == null) {
+            synchronized (TransportBackend.class) {
+                if ((backend = current) == null) {
+                    current = backend = resolve(TransportConfig.get().getTransportBackend());
+                }
+            }
+        }
+
+        return backend;
+    }
+
+    private static TransportBackend resolve(String configured) {
+        TransportBackend preferred = "auto".equalsIgnoreCase(configured) ? IO_URING : valueOf(configured.toUpperCase(Locale.ROOT).replace('-', '_'));
+
+        for (TransportBackend backend : values()) {
+            if (backend.ordinal() < preferred.ordinal()) {
+                continue;
+            }
+
+            if (backend.isAvailable()) {
+                log.info("Using {} transport backend for downstream connections", backend.name().toLowerCase(Locale.ROOT));
+                return backend;
+            }
+
+            log.debug("{} transport backend is not available", backend.name().toLowerCase(Locale.ROOT));
+        }
+
+        return NIO;
+    }
+
+    /**
+     * Get the backend matching an existing event loop group, or null if the group belongs to an unknown transport.
+     */
+    public static TransportBackend of(EventLoopGroup group) {
+        if (group instanceof IOUringEventLoopGroup) {
+            return IO_URING;
+        } else if (group instanceof EpollEventLoopGroup) {
+            return EPOLL;
+        } else if (group instanceof NioEventLoopGroup) {
+            return NIO;
+        }
+
+        return null;
+    }
+}
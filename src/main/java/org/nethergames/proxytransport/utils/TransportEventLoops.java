@@ -0,0 +1,110 @@
+package org.nethergames.proxytransport.utils;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import lombok.extern.log4j.Log4j2;
+import net.jodah.expiringmap.internal.NamedThreadFactory;
+import org.nethergames.proxytransport.config.TransportConfig;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The event loops shared by all TCP and QUIC downstream connections. Created on first use and shut down with the plugin.
+ */
+@Log4j2(topic = "ProxyTransport")
+public final class TransportEventLoops {
+    private static volatile EventLoopGroup group;
+    private static volatile List<EventLoop> eventLoops;
+
+    private TransportEventLoops() {
+    }
+
+    public static EventLoopGroup get() {
+        EventLoopGroup current = group;
+        if (current == null) {
+            synchronized (TransportEventLoops.class) {
+                if ((current = group) == null) {
+                    TransportConfig config = TransportConfig.get();
+                    int threads = config.getTransportThreads() > 0 ? config.getTransportThreads() : Runtime.getRuntime().availableProcessors();
+
+                    current = TransportBackend.get().newEventLoopGroup(threads, newThreadFactory(config.getTransportCpuAffinity()));
+                    List<EventLoop> loops = new ArrayList<>();
+                    for (EventExecutor executor : current) {
+                        loops.add((EventLoop) executor);
+                    }
+
+                    eventLoops = Collections.unmodifiableList(loops);
+                    group = current;
+                    log.info("Started {} downstream event loops", threads);
+                }
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * Get the event loops of the group in a stable order, so a slot index always maps to the same loop.
+     */
+    public static List<EventLoop> getEventLoops() {
+        get();
+        return eventLoops;
+    }
+
+    public static void shutdown() {
+        EventLoopGroup current;
+        synchronized (TransportEventLoops.class) {
+            current = group;
+            group = null;
+            eventLoops = null;
+        }
+
+        if (current != null) {
+            current.shutdownGracefully(0, 2, TimeUnit.SECONDS).awaitUninterruptibly(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(List<Integer> cpuAffinity) {
+        ThreadFactory threadFactory = new NamedThreadFactory("Transport-Downstream %s");
+        if (cpuAffinity.isEmpty()) {
+            return threadFactory;
+        }
+
+        AtomicInteger index = new AtomicInteger();
+        return runnable -> {
+            int cpu = cpuAffinity.get(index.getAndIncrement() % cpuAffinity.size());
+            return threadFactory.newThread(() -> {
+                pinCurrentThread(cpu);
+                runnable.run();
+            });
+        };
+    }
+
+    /**
+     * Pin the calling thread to a CPU with taskset. Java has no affinity API, so this only works on Linux with util-linux installed.
+     */
+    private static void pinCurrentThread(int cpu) {
+        try {
+            Path thread = Files.readSymbolicLink(Path.of("/proc/thread-self")); // <pid>/task/<tid>
+            String threadId = thread.getFileName().toString();
+
+            Process process = new ProcessBuilder("taskset", "-p", "-c", String.valueOf(cpu), threadId).redirectErrorStream(true).start();
+            if (process.waitFor() != 0) {
+                log.warn("Failed to pin {} to CPU {}: {}", Thread.currentThread().getName(), cpu, new String(process.getInputStream().readAllBytes()).trim());
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Failed to pin {} to CPU {}, CPU affinity is only supported on Linux", Thread.currentThread().getName(), cpu);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
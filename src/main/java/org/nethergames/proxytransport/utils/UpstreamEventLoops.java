@@ -0,0 +1,55 @@
+package org.nethergames.proxytransport.utils;
+
+import dev.waterdog.waterdogpe.player.ProxiedPlayer;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.concurrent.EventExecutor;
+import org.cloudburstmc.protocol.bedrock.BedrockSession;
+
+/**
+ * Resolves the event loop of a player's upstream connection, so downstream channels can be registered on it
+ * and batches can move between both sides without a thread handoff.
+ */
+public final class UpstreamEventLoops {
+
+    private UpstreamEventLoops() {
+    }
+
+    /**
+     * Get the event loop of the player's upstream session, or null if it cannot be determined or no compatible channel type exists.
+     */
+    public static EventLoop getEventLoop(ProxiedPlayer player) {
+        EventLoop eventLoop = null;
+        if (player.getConnection() instanceof BedrockSession session) {
+            eventLoop = session.getPeer().getChannel().eventLoop();
+        } else {
+            for (EventExecutor executor : player.getProxy().getWorkerEventLoopGroup()) {
+                if (executor.inEventLoop()) { // connections are usually created while handling the player's packets
+                    eventLoop = (EventLoop) executor;
+                    break;
+                }
+            }
+        }
+
+        return eventLoop != null && getSocketChannel(eventLoop) != null ? eventLoop : null;
+    }
+
+    /**
+     * Get the channel of the player's upstream session, or null if the session is not a Bedrock session.
+     */
+    public static Channel getChannel(ProxiedPlayer player) {
+        return player.getConnection() instanceof BedrockSession session ? session.getPeer().getChannel() : null;
+    }
+
+    public static Class<? extends SocketChannel> getSocketChannel(EventLoop eventLoop) {
+        TransportBackend backend = TransportBackend.of(eventLoop.parent());
+        return backend == null ? null : backend.getSocketChannel();
+    }
+
+    public static Class<? extends DatagramChannel> getDatagramChannel(EventLoop eventLoop) {
+        TransportBackend backend = TransportBackend.of(eventLoop.parent());
+        return backend == null ? null : backend.getDatagramChannel();
+    }
+}